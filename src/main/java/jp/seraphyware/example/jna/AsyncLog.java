@@ -0,0 +1,650 @@
+package jp.seraphyware.example.jna;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 呼び出し側のスレッドでの負荷が小さい、非同期のログ出力.
+ *
+ * メッセージは事前に解析したテンプレート(Template)と引数として、
+ * ロックを使わないリングバッファに積まれ、バックグラウンドのスレッドで整形・出力される。
+ * 呼び出し側ではコンソールへの出力や排他を待つことはない。
+ * (リングバッファが一杯の場合は、そのメッセージは捨てられ件数だけが数えられる。
+ * 出力先への書き込みに失敗した場合も、同様に件数だけが数えられる。)
+ *
+ * 引数はバックグラウンドのスレッドで文字列化されるので、変更されないオブジェクトを渡すこと。
+ * 数値はlongの引数として渡せばボクシングされない。
+ *
+ * 既定のインスタンスはシステムプロパティで構成する。
+ * <ul>
+ * <li>jp.seraphyware.example.jna.log.level : DEBUG, INFO, WARN, ERROR, OFF (既定はINFO)</li>
+ * <li>jp.seraphyware.example.jna.log.format : TEXT, BINARY (既定はTEXT)</li>
+ * <li>jp.seraphyware.example.jna.log.file : 出力先のファイル (既定は標準出力)</li>
+ * <li>jp.seraphyware.example.jna.log.capacity : リングバッファの大きさ (既定は8192)</li>
+ * </ul>
+ * 不正な値が指定された場合は、既定値を使う。
+ */
+public final class AsyncLog implements AutoCloseable {
+
+	/**
+	 * ログレベル
+	 */
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR, OFF
+	}
+
+	/**
+	 * 出力形式
+	 */
+	public enum Format {
+
+		/**
+		 * 1行ごとのテキスト
+		 */
+		TEXT,
+
+		/**
+		 * テンプレートIDと引数によるバイナリ.
+		 * テンプレートの文字列は最初に使われたときに1度だけ出力される。
+		 * decodeメソッドでテキストに戻すことができる。
+		 */
+		BINARY
+	}
+
+	/**
+	 * 事前に解析されたメッセージのテンプレート.
+	 * "{}"の位置に引数が埋め込まれる。
+	 */
+	public static final class Template {
+
+		private static final AtomicInteger ID_SEQ = new AtomicInteger();
+
+		private final int id;
+
+		private final String pattern;
+
+		private final String[] parts;
+
+		private Template(String pattern) {
+			this.id = ID_SEQ.getAndIncrement();
+			this.pattern = pattern;
+			List<String> parts = new ArrayList<>();
+			int pos = 0;
+			int idx;
+			while ((idx = pattern.indexOf("{}", pos)) >= 0) {
+				parts.add(pattern.substring(pos, idx));
+				pos = idx + 2;
+			}
+			parts.add(pattern.substring(pos));
+			this.parts = parts.toArray(new String[parts.size()]);
+		}
+
+		public String getPattern() {
+			return pattern;
+		}
+
+		@Override
+		public String toString() {
+			return pattern;
+		}
+	}
+
+	/**
+	 * テンプレートを作成する
+	 * @param pattern "{}"の位置に引数を埋め込むパターン
+	 * @return テンプレート
+	 */
+	public static Template template(String pattern) {
+		return new Template(Objects.requireNonNull(pattern));
+	}
+
+	/**
+	 * 1つのテンプレートに渡せる引数の最大数
+	 */
+	private static final int MAX_ARGS = 3;
+
+	/**
+	 * バイナリ形式のレコードの種類: テンプレート定義
+	 */
+	private static final byte REC_TEMPLATE = 'T';
+
+	/**
+	 * バイナリ形式のレコードの種類: メッセージ
+	 */
+	private static final byte REC_MESSAGE = 'M';
+
+	private static final byte ARG_NULL = 0;
+
+	private static final byte ARG_LONG = 1;
+
+	private static final byte ARG_STRING = 2;
+
+	/**
+	 * バイナリ形式で1つの文字列として出力できる最大の文字数.
+	 * (writeUTFは65535バイトまでで、1文字は最大3バイトになる。)
+	 */
+	private static final int MAX_UTF_CHARS = 65535 / 3;
+
+	private static final DateTimeFormatter TIMESTAMP_FORMAT =
+			DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+	/**
+	 * リングバッファの1要素.
+	 * seqは、書き込み可能であれば位置、読み込み可能であれば位置+1となる。
+	 */
+	private static final class Slot {
+
+		volatile long seq;
+
+		Level level;
+
+		long time;
+
+		/**
+		 * 呼び出し元のスレッド.
+		 * (Java 8のgetNameは呼び出しごとに文字列を作成するので、名前は出力スレッドで取得する。)
+		 */
+		Thread thread;
+
+		Template template;
+
+		int argc;
+
+		/**
+		 * 引数のうちlongとして格納されているもののビットマスク
+		 */
+		int longMask;
+
+		final Object[] args = new Object[MAX_ARGS];
+
+		final long[] longs = new long[MAX_ARGS];
+
+		Slot(long seq) {
+			this.seq = seq;
+		}
+
+		void clear() {
+			thread = null;
+			template = null;
+			for (int idx = 0; idx < argc; idx++) {
+				args[idx] = null;
+			}
+		}
+	}
+
+	private static final class Holder {
+
+		private static final AsyncLog DEFAULT = createDefault();
+	}
+
+	/**
+	 * システムプロパティで構成された既定のインスタンス.
+	 * 初回の取得時に構築され、JVMの終了時に残りのメッセージを出力する。
+	 * @return 既定のインスタンス
+	 */
+	public static AsyncLog getDefault() {
+		return Holder.DEFAULT;
+	}
+
+	private static AsyncLog createDefault() {
+		String prefix = AsyncLog.class.getPackage().getName() + ".log.";
+		Level level = enumProperty(prefix + "level", Level.INFO);
+		Format format = enumProperty(prefix + "format", Format.TEXT);
+		int capacity = Integer.getInteger(prefix + "capacity", 8192); // 数値でなければ既定値となる
+		String file = System.getProperty(prefix + "file");
+		OutputStream out;
+		if (file != null) {
+			try {
+				out = new FileOutputStream(file, true);
+
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				out = System.out;
+			}
+		} else {
+			out = System.out;
+		}
+		AsyncLog log = new AsyncLog(level, format, out, capacity);
+		Runtime.getRuntime().addShutdownHook(new Thread(log::close));
+		return log;
+	}
+
+	/**
+	 * 列挙型のシステムプロパティを取得する.
+	 * 不正な値であればクラスの初期化を失敗させないように既定値とする。
+	 * @param key プロパティ名
+	 * @param def 既定値
+	 * @return 値
+	 */
+	private static <E extends Enum<E>> E enumProperty(String key, E def) {
+		String value = System.getProperty(key);
+		if (value == null) {
+			return def;
+		}
+		try {
+			return Enum.valueOf(def.getDeclaringClass(), value.trim().toUpperCase(Locale.ROOT));
+
+		} catch (IllegalArgumentException ex) {
+			System.err.println("invalid " + key + "=" + value + ", using " + def);
+			return def;
+		}
+	}
+
+	/**
+	 * 出力するログレベルの下限 (Level.ordinal)
+	 */
+	private final int threshold;
+
+	private final Format format;
+
+	private final DataOutputStream out;
+
+	private final Slot[] ring;
+
+	private final int mask;
+
+	/**
+	 * 次に書き込む位置 (複数のスレッドから更新される)
+	 */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * 次に読み込む位置 (出力スレッドのみ)
+	 */
+	private long head;
+
+	/**
+	 * 出力先にフラッシュ済みの位置 (出力スレッドが更新する)
+	 */
+	private volatile long flushed;
+
+	private final LongAdder dropped = new LongAdder();
+
+	private final LongAdder writeErrors = new LongAdder();
+
+	private final Thread writerThread;
+
+	private volatile boolean closed;
+
+	/**
+	 * バイナリ形式で出力済みのテンプレート (出力スレッドのみ)
+	 */
+	private final BitSet writtenTemplates = new BitSet();
+
+	/**
+	 * テキスト形式の整形用バッファ (出力スレッドのみ)
+	 */
+	private final StringBuilder line = new StringBuilder();
+
+	/**
+	 * バイナリ形式の1レコード分の組み立て用バッファ (出力スレッドのみ).
+	 * 途中で失敗したレコードが出力先に混ざらないように、完成してから出力先にコピーする。
+	 */
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+
+	private final DataOutputStream recordOut = new DataOutputStream(record);
+
+	/**
+	 * コンストラクタ.
+	 * 出力用のスレッドを開始する。
+	 * @param level 出力するログレベルの下限
+	 * @param format 出力形式
+	 * @param out 出力先
+	 * @param capacity リングバッファの大きさ (2のべき乗に切り上げる)
+	 */
+	public AsyncLog(Level level, Format format, OutputStream out, int capacity) {
+		this.threshold = level.ordinal();
+		this.format = Objects.requireNonNull(format);
+		this.out = new DataOutputStream(new BufferedOutputStream(out, 16 * 1024));
+
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.ring = new Slot[size];
+		for (int idx = 0; idx < size; idx++) {
+			ring[idx] = new Slot(idx);
+		}
+		this.mask = size - 1;
+
+		this.writerThread = new Thread(this::writeLoop, AsyncLog.class.getSimpleName());
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+	/**
+	 * 指定したレベルが出力対象であるか
+	 * @param level ログレベル
+	 * @return 出力対象であればtrue
+	 */
+	public boolean isEnabled(Level level) {
+		return level.ordinal() >= threshold;
+	}
+
+	/**
+	 * リングバッファが一杯で捨てられたメッセージ数
+	 * @return 件数
+	 */
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	/**
+	 * 出力先への書き込みやフラッシュに失敗した回数
+	 * @return 回数
+	 */
+	public long getWriteErrorCount() {
+		return writeErrors.sum();
+	}
+
+	// ------- メッセージの投入 -------
+
+	public void log(Level level, Template template) {
+		if (isEnabled(level)) {
+			Slot slot = claim();
+			if (slot != null) {
+				publish(slot, level, template, 0, 0);
+			}
+		}
+	}
+
+	public void log(Level level, Template template, long arg0) {
+		if (isEnabled(level)) {
+			Slot slot = claim();
+			if (slot != null) {
+				slot.longs[0] = arg0;
+				publish(slot, level, template, 1, 1);
+			}
+		}
+	}
+
+	public void log(Level level, Template template, Object arg0) {
+		if (isEnabled(level)) {
+			Slot slot = claim();
+			if (slot != null) {
+				slot.args[0] = arg0;
+				publish(slot, level, template, 1, 0);
+			}
+		}
+	}
+
+	public void log(Level level, Template template, Object arg0, Object arg1) {
+		if (isEnabled(level)) {
+			Slot slot = claim();
+			if (slot != null) {
+				slot.args[0] = arg0;
+				slot.args[1] = arg1;
+				publish(slot, level, template, 2, 0);
+			}
+		}
+	}
+
+	public void log(Level level, Template template, Object arg0, Object arg1, Object arg2) {
+		if (isEnabled(level)) {
+			Slot slot = claim();
+			if (slot != null) {
+				slot.args[0] = arg0;
+				slot.args[1] = arg1;
+				slot.args[2] = arg2;
+				publish(slot, level, template, 3, 0);
+			}
+		}
+	}
+
+	/**
+	 * リングバッファの書き込み位置を確保する
+	 * @return 確保したスロット、一杯または閉じられている場合はnull
+	 */
+	private Slot claim() {
+		if (closed) {
+			dropped.increment();
+			return null;
+		}
+		for (;;) {
+			long pos = tail.get();
+			Slot slot = ring[(int) (pos & mask)];
+			long seq = slot.seq;
+			if (seq == pos) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					return slot;
+				}
+			} else if (seq < pos) {
+				// 一周前の要素がまだ出力されていない
+				dropped.increment();
+				return null;
+			}
+			// 他のスレッドが先に確保したので再試行する
+		}
+	}
+
+	private void publish(Slot slot, Level level, Template template, int argc, int longMask) {
+		slot.level = level;
+		slot.time = System.currentTimeMillis();
+		slot.thread = Thread.currentThread();
+		slot.template = template;
+		slot.argc = argc;
+		slot.longMask = longMask;
+		slot.seq = slot.seq + 1; // 出力スレッドに公開する
+	}
+
+	// ------- 出力スレッド -------
+
+	private void writeLoop() {
+		int idle = 0;
+		boolean dirty = false;
+		for (;;) {
+			Slot slot = ring[(int) (head & mask)];
+			if (slot.seq == head + 1) {
+				try {
+					write(slot);
+
+				} catch (IOException ex) {
+					// 出力先が壊れている場合に毎回報告すると溢れるので、件数だけを数える
+					writeErrors.increment();
+				}
+				// 失敗した場合もflushの待機を終えられるように、処理済みとして扱う
+				dirty = true;
+				slot.clear();
+				slot.seq = head + ring.length; // 次の周回の書き込み位置として解放する
+				head++;
+				idle = 0;
+				continue;
+			}
+
+			if (dirty) {
+				try {
+					out.flush();
+
+				} catch (IOException ex) {
+					writeErrors.increment();
+				}
+				flushed = head;
+				dirty = false;
+			}
+			if (closed && tail.get() == head) {
+				break;
+			}
+			// しばらくはスピンし、それでもなければ待機する
+			if (idle++ < 100) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(idle < 1000 ? 1_000_000L : 10_000_000L);
+			}
+		}
+	}
+
+	private void write(Slot slot) throws IOException {
+		if (format == Format.BINARY) {
+			Template template = slot.template;
+			boolean newTemplate = !writtenTemplates.get(template.id);
+			record.reset();
+			if (newTemplate) {
+				recordOut.writeByte(REC_TEMPLATE);
+				recordOut.writeInt(template.id);
+				recordOut.writeUTF(truncate(template.pattern));
+			}
+			recordOut.writeByte(REC_MESSAGE);
+			recordOut.writeLong(slot.time);
+			recordOut.writeByte(slot.level.ordinal());
+			recordOut.writeUTF(truncate(slot.thread.getName()));
+			recordOut.writeInt(template.id);
+			recordOut.writeByte(slot.argc);
+			for (int idx = 0; idx < slot.argc; idx++) {
+				if ((slot.longMask & (1 << idx)) != 0) {
+					recordOut.writeByte(ARG_LONG);
+					recordOut.writeLong(slot.longs[idx]);
+				} else if (slot.args[idx] == null) {
+					recordOut.writeByte(ARG_NULL);
+				} else {
+					recordOut.writeByte(ARG_STRING);
+					recordOut.writeUTF(truncate(String.valueOf(slot.args[idx])));
+				}
+			}
+			record.writeTo(out);
+			if (newTemplate) {
+				writtenTemplates.set(template.id);
+			}
+			return;
+		}
+
+		line.setLength(0);
+		String[] parts = slot.template.parts;
+		Object[] args = new Object[slot.argc];
+		for (int idx = 0; idx < slot.argc; idx++) {
+			args[idx] = (slot.longMask & (1 << idx)) != 0 ? (Object) slot.longs[idx] : slot.args[idx];
+		}
+		appendLine(line, slot.time, slot.level, slot.thread.getName(), parts, args);
+		out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String truncate(String str) {
+		return str.length() > MAX_UTF_CHARS ? str.substring(0, MAX_UTF_CHARS) : str;
+	}
+
+	private static void appendLine(StringBuilder line, long time, Level level, String thread,
+			String[] parts, Object[] args) {
+		TIMESTAMP_FORMAT.formatTo(Instant.ofEpochMilli(time), line);
+		line.append(' ').append(level.name());
+		for (int pad = level.name().length(); pad < 5; pad++) {
+			line.append(' ');
+		}
+		line.append(" [").append(thread).append("] ");
+		for (int idx = 0; idx < parts.length; idx++) {
+			line.append(parts[idx]);
+			if (idx < parts.length - 1) {
+				line.append(idx < args.length ? args[idx] : "{}");
+			}
+		}
+		line.append(System.lineSeparator());
+	}
+
+	/**
+	 * 呼び出し時点までに投入されたメッセージが出力先にフラッシュされるまで待つ.
+	 * (コンソールへの対話的な出力と順序を揃えたい場合などに使う。)
+	 */
+	public void flush() {
+		long target = tail.get();
+		while (flushed < target && writerThread.isAlive()) {
+			LockSupport.unpark(writerThread);
+			LockSupport.parkNanos(100_000L);
+		}
+	}
+
+	/**
+	 * 残りのメッセージをすべて出力してから、出力用のスレッドを終了する.
+	 * 出力先のストリームは閉じない。
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		LockSupport.unpark(writerThread);
+		try {
+			writerThread.join();
+
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			out.flush();
+
+		} catch (IOException ex) {
+			writeErrors.increment();
+		}
+	}
+
+	/**
+	 * バイナリ形式のログをテキスト形式に変換する
+	 * @param is バイナリ形式のログ
+	 * @param ps テキストの出力先
+	 * @throws IOException
+	 */
+	public static void decode(InputStream is, PrintStream ps) throws IOException {
+		DataInputStream dis = new DataInputStream(is);
+		Map<Integer, Template> templates = new HashMap<>();
+		StringBuilder line = new StringBuilder();
+		Level[] levels = Level.values();
+		for (;;) {
+			int rec = dis.read();
+			if (rec < 0) {
+				break;
+			}
+			try {
+				if (rec == REC_TEMPLATE) {
+					int id = dis.readInt();
+					templates.put(id, new Template(dis.readUTF()));
+
+				} else if (rec == REC_MESSAGE) {
+					long time = dis.readLong();
+					Level level = levels[dis.readByte()];
+					String thread = dis.readUTF();
+					Template template = templates.get(dis.readInt());
+					if (template == null) {
+						throw new IOException("undefined template");
+					}
+					Object[] args = new Object[dis.readByte()];
+					for (int idx = 0; idx < args.length; idx++) {
+						byte type = dis.readByte();
+						if (type == ARG_LONG) {
+							args[idx] = dis.readLong();
+						} else if (type == ARG_STRING) {
+							args[idx] = dis.readUTF();
+						}
+					}
+					line.setLength(0);
+					appendLine(line, time, level, thread, template.parts, args);
+					ps.print(line);
+
+				} else {
+					throw new IOException("unknown record: " + rec);
+				}
+
+			} catch (EOFException ex) {
+				throw new IOException("truncated record", ex);
+			}
+		}
+		ps.flush();
+	}
+}
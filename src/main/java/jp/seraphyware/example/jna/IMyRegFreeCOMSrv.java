@@ -0,0 +1,67 @@
+package jp.seraphyware.example.jna;
+
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.MyRegFreeCOMSrvEventListener;
+
+/**
+ * MyRegFreeCOMSrvのJava側から見たプロパティ・メソッドとイベントリスナの定義.
+ *
+ * COMオブジェクトを直接ラップするMyRegFreeCOMSrvのほか、
+ * COMを使わずに同じ振る舞いをする代替実装(テスト用のスタンドインなど)も、
+ * このインターフェイスを通して同じように扱うことができる。
+ */
+public interface IMyRegFreeCOMSrv extends AutoCloseable {
+
+	/**
+	 * Nameプロパティの取得
+	 * @return 名前
+	 */
+	String getName();
+
+	/**
+	 * Nameプロパティの設定.
+	 * 変更前・変更後のイベントが通知される。
+	 * @param name 名前
+	 */
+	void setName(String name);
+
+	/**
+	 * ShowHelloメソッドの呼び出し
+	 */
+	void ShowHello();
+
+	/**
+	 * イベントリスナの追加
+	 * @param l リスナ
+	 */
+	void addListener(MyRegFreeCOMSrvEventListener l);
+
+	/**
+	 * DISPIDごとの配信方法を指定してイベントリスナを追加する
+	 * @param l リスナ
+	 * @param options 配信方法
+	 * @return 登録されたリスナと配信数・破棄数
+	 */
+	MyRegFreeCOMSrvSubscription addListener(MyRegFreeCOMSrvEventListener l,
+			MyRegFreeCOMSrvSubscription.Options options);
+
+	/**
+	 * イベントリスナの削除
+	 * @param l リスナ
+	 */
+	void removeListener(MyRegFreeCOMSrvEventListener l);
+
+	/**
+	 * コネクションポイントへの接続の監視.
+	 * 監視がある場合は、ホストするアパートメントスレッドで定期的にpollを呼び出すこと。
+	 * @return 監視、監視しない実装ではnull
+	 */
+	default MyRegFreeCOMSrvConnectionSupervisor getConnectionSupervisor() {
+		return null;
+	}
+
+	/**
+	 * 解放する
+	 */
+	@Override
+	void close();
+}
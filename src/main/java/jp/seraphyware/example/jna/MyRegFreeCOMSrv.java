@@ -1,8 +1,12 @@
 package jp.seraphyware.example.jna;
 
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedDeque;
 
 import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
 import com.sun.jna.WString;
 import com.sun.jna.platform.win32.Guid.IID;
 import com.sun.jna.platform.win32.Guid.REFIID;
@@ -29,19 +33,31 @@ import com.sun.jna.platform.win32.COM.DispatchListener;
 import com.sun.jna.platform.win32.COM.IDispatch;
 import com.sun.jna.platform.win32.COM.IDispatchCallback;
 import com.sun.jna.platform.win32.COM.IUnknown;
+import com.sun.jna.platform.win32.COM.Unknown;
 import com.sun.jna.ptr.IntByReference;
 import com.sun.jna.ptr.PointerByReference;
 
+import jp.seraphyware.example.jna.AsyncLog.Level;
+import jp.seraphyware.example.jna.AsyncLog.Template;
+
 /**
  * JNAによる、MyRegFreeCOMSrvに接続するCOMクラスの定義
  */
-public class MyRegFreeCOMSrv extends COMLateBindingObject implements AutoCloseable {
+public class MyRegFreeCOMSrv extends COMLateBindingObject implements IMyRegFreeCOMSrv {
 
 	/**
 	 * MyRegFreeCOMSrvのコネクションポイントのDIID
 	 */
 	public static IID DIID_IMyRegFreeCOMSrvEvents = new IID("8C11D374-E2BF-4DEF-89AB-81756137C1D0");
 
+	private static final AsyncLog LOG = AsyncLog.getDefault();
+
+	private static final Template CONNECT_FAILED = AsyncLog.template("connect failed, retrying: {}");
+
+	private static final Template INITIAL_NAME_FAILED = AsyncLog.template("initial name unavailable: {}");
+
+	private static final Template UNADVISE_FAILED = AsyncLog.template("unadvise failed: {}");
+
 	/**
 	 * Nameプロパティの変更前イベント
 	 */
@@ -122,39 +138,69 @@ public class MyRegFreeCOMSrv extends COMLateBindingObject implements AutoCloseab
 		/**
 		 * DISPID(1) NamePropertyChangingイベントのDispId
 		 */
-		private static final int DISPID_NAME_PROPERTY_CHANGING = 1;
+		public static final int DISPID_NAME_PROPERTY_CHANGING = 1;
 
 		/**
 		 * DISPID(2) NamePropertyChangedイベントのDispId
 		 */
-		private static final int DISPID_NAME_PROPERTY_CHANGED = 2;
+		public static final int DISPID_NAME_PROPERTY_CHANGED = 2;
+
+		private static final AsyncLog LOG = AsyncLog.getDefault();
+
+		private static final Template DISPID_MEMBER = AsyncLog.template("★dispIdMember={}");
 
 		//------------------------ イベントリスナ ------------------------------
 
 		/**
-		 * Javaイベントリスナを保持するリスト
+		 * Javaイベントリスナと配信方法を保持するリスト
 		 */
-		private final ConcurrentLinkedDeque<MyRegFreeCOMSrvEventListener>
+		private final ConcurrentLinkedDeque<MyRegFreeCOMSrvSubscription>
 			eventListeners = new ConcurrentLinkedDeque<>();
 
 		public void addListener(MyRegFreeCOMSrvEventListener listener) {
-			eventListeners.add(listener);
+			addListener(listener, new MyRegFreeCOMSrvSubscription.Options());
+		}
+
+		/**
+		 * DISPIDごとの配信方法を指定してJavaイベントリスナを追加する
+		 * @param listener リスナ
+		 * @param options 配信方法
+		 * @return 登録されたリスナと配信数・破棄数
+		 */
+		public MyRegFreeCOMSrvSubscription addListener(MyRegFreeCOMSrvEventListener listener,
+				MyRegFreeCOMSrvSubscription.Options options) {
+			MyRegFreeCOMSrvSubscription subscription = new MyRegFreeCOMSrvSubscription(listener, options);
+			eventListeners.add(subscription);
+			return subscription;
 		}
 
 		public void removeListener(MyRegFreeCOMSrvEventListener listener) {
-			eventListeners.remove(listener);
+			for (Iterator<MyRegFreeCOMSrvSubscription> ite = eventListeners.iterator(); ite.hasNext();) {
+				MyRegFreeCOMSrvSubscription subscription = ite.next();
+				if (listener.equals(subscription.getListener())) { // Collection.removeと同じくequalsで比較する
+					ite.remove();
+					// 別スレッドで配信待ちのイベントが、削除後にリスナに届かないようにする
+					subscription.cancel();
+					break;
+				}
+			}
 		}
 
 		//------------------------ JNA ------------------------------
 
 		/**
 		 * IDispatchのvtblを作成してCOMからの呼び出しを、
-		 * このクラス(IDispatchCallback)に転送できるようにするためのJNAの仕掛け
+		 * このクラス(IDispatchCallback)に転送できるようにするためのJNAの仕掛け.
+		 * (vtblはstdcallのコールバックを必要とするので、Windows以外でもイベントシンクを
+		 * Javaのリスナの管理に使えるように、COMに渡す時点で初めて作成する。)
 		 */
-		private final DispatchListener listener = new DispatchListener(this);
+		private DispatchListener listener;
 
 		@Override
-		public Pointer getPointer() {
+		public synchronized Pointer getPointer() {
+			if (listener == null) {
+				listener = new DispatchListener(this);
+			}
 			return this.listener.getPointer();
 		}
 
@@ -181,7 +227,7 @@ public class MyRegFreeCOMSrv extends COMLateBindingObject implements AutoCloseab
 	            WORD wFlags, DISPPARAMS.ByReference pDispParams,
 	            VARIANT.ByReference pVarResult, EXCEPINFO.ByReference pExcepInfo,
 	            IntByReference puArgErr) {
-			System.out.println("★dispIdMember=" + dispIdMember);
+			LOG.log(Level.DEBUG, DISPID_MEMBER, dispIdMember.intValue());
 			VARIANT[] arguments = pDispParams.getArgs();
 			switch (dispIdMember.intValue()) {
 	            case DISPID_NAME_PROPERTY_CHANGING: {
@@ -194,9 +240,7 @@ public class MyRegFreeCOMSrv extends COMLateBindingObject implements AutoCloseab
 	                evt.setName(name.stringValue());
 	                evt.setCancel(cancel.getValue().booleanValue());
 
-	                for (MyRegFreeCOMSrvEventListener l : eventListeners) {
-	                	l.namePropertyChanging(evt);
-	                }
+	                fireNamePropertyChanging(evt);
 
 	                // byref cancel as boolean の返却
                 	cancel.setValue(evt.isCancel() ? Variant.VARIANT_TRUE : Variant.VARIANT_FALSE);
@@ -209,15 +253,33 @@ public class MyRegFreeCOMSrv extends COMLateBindingObject implements AutoCloseab
 	                NamePropertyChangedEvent evt = new NamePropertyChangedEvent();
 	                evt.setName(name.stringValue());
 
-	                for (MyRegFreeCOMSrvEventListener l : eventListeners) {
-	                	l.namePropertyChanged(evt);
-	                }
+	                fireNamePropertyChanged(evt);
 	                break;
 	            }
 	        }
 			return WinError.S_OK;
 		}
 
+		/**
+		 * 名前が変更される前のイベントを登録されているJavaイベントリスナに通知する
+		 * @param evt イベント
+		 */
+		void fireNamePropertyChanging(NamePropertyChangingEvent evt) {
+			for (MyRegFreeCOMSrvSubscription l : eventListeners) {
+				l.namePropertyChanging(evt);
+			}
+		}
+
+		/**
+		 * 名前が変更された後のイベントを登録されているJavaイベントリスナに通知する
+		 * @param evt イベント
+		 */
+		void fireNamePropertyChanged(NamePropertyChangedEvent evt) {
+			for (MyRegFreeCOMSrvSubscription l : eventListeners) {
+				l.namePropertyChanged(evt);
+			}
+		}
+
 		//------------------------ IUnknown ------------------------------
 
 		@Override
@@ -264,16 +326,58 @@ public class MyRegFreeCOMSrv extends COMLateBindingObject implements AutoCloseab
 	private final MyRegFreeCOMSrvEventsSink eventSink = new MyRegFreeCOMSrvEventsSink();
 
 	/**
-	 * コンストラクタ
+	 * コネクションポイントへの接続の監視と再接続
+	 */
+	private final MyRegFreeCOMSrvConnectionSupervisor supervisor;
+
+	/**
+	 * 再接続時に、切断中に取りこぼしたNameプロパティの変更を補う
+	 */
+	private final MyRegFreeCOMSrvNameResync nameResync;
+
+	/**
+	 * コンストラクタ.
+	 * コネクションポイントに接続できなかった場合は、解放して例外を送出する。
 	 */
 	public MyRegFreeCOMSrv() {
+		this(new MyRegFreeCOMSrvConnectionSupervisor.Policy(), false);
+	}
+
+	/**
+	 * コネクションポイントへの接続を監視するコンストラクタ.
+	 * 監視と再接続は、このオブジェクトを構築したスレッドから
+	 * getConnectionSupervisor().poll()を定期的に呼び出すことで行われる。
+	 * @param policy 監視と再接続の間隔
+	 * @param retryInitialConnect trueの場合、最初の接続に失敗しても例外とせず再接続を試行する
+	 */
+	public MyRegFreeCOMSrv(MyRegFreeCOMSrvConnectionSupervisor.Policy policy, boolean retryInitialConnect) {
 		super("MyRegFreeCOMSrv", false);
+		supervisor = new MyRegFreeCOMSrvConnectionSupervisor(new ComConnectionBackend(), eventSink, policy);
+		nameResync = new MyRegFreeCOMSrvNameResync(this::getName, eventSink);
+		supervisor.setRecoveryHandler(nameResync);
+		eventSink.addListener(nameResync);
 		try {
-			connect();
+			supervisor.connect();
 
 		} catch (RuntimeException ex) {
-			close();
-			throw ex;
+			if (!retryInitialConnect) {
+				close();
+				throw ex;
+			}
+			// 比較の基準となる名前は、再接続時に取得される
+			LOG.log(Level.WARN, CONNECT_FAILED, ex);
+			return;
+		}
+		try {
+			nameResync.reset();
+
+		} catch (RuntimeException ex) {
+			if (!retryInitialConnect) {
+				close();
+				throw ex;
+			}
+			// 接続はできているので再接続はしない。(切断を示すエラーであればgetNameで通知済み)
+			LOG.log(Level.WARN, INITIAL_NAME_FAILED, ex);
 		}
 	}
 
@@ -282,83 +386,227 @@ public class MyRegFreeCOMSrv extends COMLateBindingObject implements AutoCloseab
 	 */
 	@Override
 	public void release() {
-		disconnect();
+		try {
+			supervisor.close();
+
+		} catch (RuntimeException ex) {
+			// 解放は続行する
+			LOG.log(Level.WARN, UNADVISE_FAILED, ex);
+		}
 		super.release();
 	}
 
 	/**
-	 * コネクションポイント
+	 * コネクションポイントへの接続の監視と再接続
+	 * @return 監視
 	 */
-	private ConnectionPoint connectionPoint;
+	@Override
+	public MyRegFreeCOMSrvConnectionSupervisor getConnectionSupervisor() {
+		return supervisor;
+	}
 
 	/**
-	 * コネクションポイントにAdviseしたイベントシンクを示すCookie
+	 * IConnectionPoint::EnumConnectionsを呼び出せるコネクションポイント.
+	 * (JNA 4.5.1のConnectionPointでは実装されていないので、vtblから直接呼び出す。)
 	 */
-	private DWORD cookie;
+	private static final class EnumerableConnectionPoint extends ConnectionPoint {
+
+		EnumerableConnectionPoint(Pointer pvInstance) {
+			super(pvInstance);
+		}
+
+		HRESULT EnumConnections(PointerByReference ppEnum) {
+			return (HRESULT) _invokeNativeObject(7, new Object[] { getPointer(), ppEnum }, HRESULT.class);
+		}
+	}
 
 	/**
-	 * コネクションポイントに接続する
+	 * IEnumConnections
 	 */
-	private void connect() {
-		IDispatch pDisp = getIDispatch();
-
-		// コネクションポイントコンテナの取得
-		PointerByReference ppCpc = new PointerByReference();
-		HRESULT hr = pDisp.QueryInterface(
-				new REFIID(ConnectionPointContainer.IID_IConnectionPointContainer), ppCpc);
-		COMUtils.checkRC(hr);
-		ConnectionPointContainer cpc = new ConnectionPointContainer(ppCpc.getValue());
-		try {
-			// コネクションポイントの取得
-			PointerByReference ppCP = new PointerByReference();
-			hr = cpc.FindConnectionPoint(new REFIID(DIID_IMyRegFreeCOMSrvEvents.getPointer()), ppCP);
-			COMUtils.checkRC(hr);
-			connectionPoint = new ConnectionPoint(ppCP.getValue());
-	        DWORDByReference pdwCookie = new DWORDByReference();
+	private static final class EnumConnections extends Unknown {
 
-	        // 接続する
-	        COMUtils.checkRC(connectionPoint.Advise(eventSink, pdwCookie));
-	        cookie = pdwCookie.getValue();
+		EnumConnections(Pointer pvInstance) {
+			super(pvInstance);
+		}
 
-		} finally {
-			cpc.Release();
+		HRESULT Next(int cConnections, CONNECTDATA rgcd, IntByReference pcFetched) {
+			return (HRESULT) _invokeNativeObject(3,
+					new Object[] { getPointer(), cConnections, rgcd, pcFetched }, HRESULT.class);
 		}
 	}
 
 	/**
-	 * コネクションポイントの接続解除
+	 * IEnumConnectionsで列挙される接続.
+	 * (JNAから構造体として読み書きされるのでpublicとする。)
 	 */
-	private void disconnect() {
-		if (connectionPoint != null) {
-			// コネクションポイント解除
-			connectionPoint.Unadvise(cookie);
-			connectionPoint.Release();
-			connectionPoint = null;
+	public static class CONNECTDATA extends Structure {
+
+		public Pointer pUnk;
+
+		public int dwCookie;
+
+		@Override
+		protected List<String> getFieldOrder() {
+			return Arrays.asList("pUnk", "dwCookie");
+		}
+	}
+
+	/**
+	 * COMのコネクションポイントへの接続操作
+	 */
+	private final class ComConnectionBackend implements MyRegFreeCOMSrvConnectionBackend {
+
+		/**
+		 * コネクションポイント
+		 */
+		private EnumerableConnectionPoint connectionPoint;
+
+		/**
+		 * コネクションポイントにAdviseしたイベントシンクを示すCookie
+		 */
+		private DWORD cookie;
+
+		/**
+		 * コネクションポイントに接続する
+		 */
+		@Override
+		public void advise(IDispatchCallback sink) {
+			IDispatch pDisp = getIDispatch();
+
+			// コネクションポイントコンテナの取得
+			PointerByReference ppCpc = new PointerByReference();
+			HRESULT hr = pDisp.QueryInterface(
+					new REFIID(ConnectionPointContainer.IID_IConnectionPointContainer), ppCpc);
+			COMUtils.checkRC(hr);
+			ConnectionPointContainer cpc = new ConnectionPointContainer(ppCpc.getValue());
+			try {
+				// コネクションポイントの取得
+				PointerByReference ppCP = new PointerByReference();
+				hr = cpc.FindConnectionPoint(new REFIID(DIID_IMyRegFreeCOMSrvEvents.getPointer()), ppCP);
+				COMUtils.checkRC(hr);
+				EnumerableConnectionPoint cp = new EnumerableConnectionPoint(ppCP.getValue());
+		        DWORDByReference pdwCookie = new DWORDByReference();
+
+		        // 接続する
+		        hr = cp.Advise(sink, pdwCookie);
+		        if (COMUtils.FAILED(hr)) {
+		        	cp.Release();
+		        	COMUtils.checkRC(hr);
+		        }
+		        connectionPoint = cp;
+		        cookie = pdwCookie.getValue();
+
+			} finally {
+				cpc.Release();
+			}
+		}
+
+		/**
+		 * コネクションポイントの接続解除
+		 */
+		@Override
+		public void unadvise() {
+			if (connectionPoint != null) {
+				// コネクションポイント解除
+				HRESULT hr = connectionPoint.Unadvise(cookie);
+				connectionPoint.Release();
+				connectionPoint = null;
+				COMUtils.checkRC(hr);
+			}
+		}
+
+		/**
+		 * Adviseで得たCookieが、まだコネクションポイントの接続に列挙されるか確認する.
+		 * EnumConnectionsが実装されていないコネクションポイントの場合は、
+		 * コネクションポイント自体が応答するかだけを確認する。
+		 */
+		@Override
+		public boolean probe() {
+			if (connectionPoint == null) {
+				return false;
+			}
+			PointerByReference ppEnum = new PointerByReference();
+			HRESULT hr = connectionPoint.EnumConnections(ppEnum);
+			if (hr.intValue() == WinError.E_NOTIMPL) {
+				return COMUtils.SUCCEEDED(connectionPoint.GetConnectionInterface(new IID()));
+			}
+			if (COMUtils.FAILED(hr)) {
+				return false;
+			}
+			EnumConnections connections = new EnumConnections(ppEnum.getValue());
+			try {
+				CONNECTDATA data = new CONNECTDATA();
+				IntByReference fetched = new IntByReference();
+				while (COMUtils.SUCCEEDED(connections.Next(1, data, fetched)) && fetched.getValue() == 1) {
+					if (data.pUnk != null) {
+						// 列挙された接続先は参照カウントが加算されている
+						new Unknown(data.pUnk).Release();
+					}
+					if (data.dwCookie == cookie.intValue()) {
+						return true;
+					}
+				}
+				return false;
+
+			} finally {
+				connections.Release();
+			}
 		}
 	}
 
 	// ------- イベントリスナの追加・削除 -------
 
+	@Override
 	public void addListener(MyRegFreeCOMSrvEventListener l) {
 		eventSink.addListener(l);
 	}
 
+	@Override
+	public MyRegFreeCOMSrvSubscription addListener(MyRegFreeCOMSrvEventListener l,
+			MyRegFreeCOMSrvSubscription.Options options) {
+		return eventSink.addListener(l, options);
+	}
+
+	@Override
 	public void removeListener(MyRegFreeCOMSrvEventListener l) {
 		eventSink.removeListener(l);
 	}
 
 	// ------- COMプロパティ・メソッドの呼び出し -------
 
+	// 切断を示すHRESULTで失敗した場合は、監視に通知して再接続させる
+
+	@Override
 	public String getName() {
-		return super.getStringProperty("Name");
+		try {
+			return super.getStringProperty("Name");
+
+		} catch (RuntimeException ex) {
+			supervisor.callFailed(ex);
+			throw ex;
+		}
 	}
 
+	@Override
 	public void setName(String name) {
-		super.setProperty("Name", name);
+		try {
+			super.setProperty("Name", name);
+
+		} catch (RuntimeException ex) {
+			supervisor.callFailed(ex);
+			throw ex;
+		}
 	}
 
+	@Override
 	public void ShowHello() {
-		super.invokeNoReply("ShowHello");
+		try {
+			super.invokeNoReply("ShowHello");
+
+		} catch (RuntimeException ex) {
+			supervisor.callFailed(ex);
+			throw ex;
+		}
 	}
 
 	@Override
@@ -18,6 +18,8 @@ import java.util.Base64;
 import com.sun.jna.Platform;
 import com.sun.jna.platform.win32.Ole32;
 
+import jp.seraphyware.example.jna.AsyncLog.Level;
+import jp.seraphyware.example.jna.AsyncLog.Template;
 import jp.seraphyware.example.jna.MyRegFreeCOMSrv.MyRegFreeCOMSrvEventListener;
 import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangedEvent;
 import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangingEvent;
@@ -30,7 +32,19 @@ import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangingEvent;
  */
 public class MyRegFreeCOMSrvClient {
 
-	private static final String CLIENT_MANIFEST = "client.manifest";
+	static final String CLIENT_MANIFEST = "client.manifest";
+
+	private static final AsyncLog LOG = AsyncLog.getDefault();
+
+	private static final Template NATIVE_DIR = AsyncLog.template("nativeDir={}");
+
+	private static final Template CREATE = AsyncLog.template("create: {}");
+
+	private static final Template JAVA_VERSION = AsyncLog.template("java version={}");
+
+	private static final Template MANIFEST = AsyncLog.template("Manifest={}");
+
+	private static final Template DONE = AsyncLog.template("Done!");
 
 	/**
 	 * ネイティブのDLLおよびマニフェストファイルをテンポラリに展開する.
@@ -71,7 +85,7 @@ public class MyRegFreeCOMSrvClient {
 		String uniqFolder = MyRegFreeCOMSrvClient.class.getName();
 		Path tempDir = Paths.get(System.getProperty("java.io.tmpdir"));
 		Path nativeDir = tempDir.resolve(uniqFolder).resolve(hashStr).resolve(prefix);
-		System.out.println("nativeDir=" + nativeDir);
+		LOG.log(Level.INFO, NATIVE_DIR, nativeDir);
 		Files.createDirectories(nativeDir);
 
 		// リソースの展開 (すでにファイルがある場合はスキップする。)
@@ -81,7 +95,7 @@ public class MyRegFreeCOMSrvClient {
 			Path destFile = nativeDir.resolve(fileName);
 			if (!Files.exists(destFile)) {
 				try (InputStream is = clsldr.getResourceAsStream(resource)) {
-					System.out.println("create: " + destFile);
+					LOG.log(Level.INFO, CREATE, destFile);
 					Files.copy(is, destFile);
 				}
 			}
@@ -126,7 +140,7 @@ public class MyRegFreeCOMSrvClient {
 	 */
 	public static void main(String[] args) throws Exception {
 		Ole32.INSTANCE.CoInitialize(null);
-		System.out.println("java version=" + System.getProperty("java.version"));
+		LOG.log(Level.INFO, JAVA_VERSION, System.getProperty("java.version"));
 
 		// リソースに格納されているx86/x64用のDLLを
 		// ロードできるようにテンポラリに展開する
@@ -134,7 +148,7 @@ public class MyRegFreeCOMSrvClient {
 
 		// マニフェストファイルの位置
 		String manifestFile = nativeDir.resolve(CLIENT_MANIFEST).toString();
-		System.out.println("Manifest=" + manifestFile);
+		LOG.log(Level.INFO, MANIFEST, manifestFile);
 
 		// アクティベーションコンテキストで明示的にマニフェストを読み込んでSxSでレジストリフリーでCOMを構築する
 		try (MyRegFreeCOMSrv srv = ActivationContextAPI.doActivate(
@@ -145,6 +159,8 @@ public class MyRegFreeCOMSrvClient {
 
 				@Override
 				public void namePropertyChanging(NamePropertyChangingEvent evt) {
+					// 非同期のログ出力と対話的な入出力が混ざらないようにする
+					LOG.flush();
 	                System.out.println("NamePropertyChanging: " + evt);
 
 	                System.out.println("cancel? (yes/no)");
@@ -176,7 +192,7 @@ public class MyRegFreeCOMSrvClient {
 			srv.setName("PiyoPiyo");
 			srv.ShowHello();
 		}
-		System.out.println("Done!");
+		LOG.log(Level.INFO, DONE);
 
 		Ole32.INSTANCE.CoUninitialize();
 	}
@@ -0,0 +1,34 @@
+package jp.seraphyware.example.jna;
+
+import com.sun.jna.platform.win32.COM.IDispatchCallback;
+
+/**
+ * コネクションポイントへの接続操作.
+ *
+ * MyRegFreeCOMSrvConnectionSupervisorは、この操作だけを通してCOMのコネクションポイントに接続する。
+ * COM以外の実装に差し替えることで、接続の失敗や切断を模擬して試験することができる。
+ * いずれもCOMオブジェクトを所有するアパートメントスレッドから呼び出される。
+ */
+public interface MyRegFreeCOMSrvConnectionBackend {
+
+	/**
+	 * イベントシンクをコネクションポイントに接続する(Advise)
+	 * @param sink イベントシンク
+	 * @throws RuntimeException 接続できなかった場合
+	 */
+	void advise(IDispatchCallback sink);
+
+	/**
+	 * 接続を解除する(Unadvise).
+	 * 結果にかかわらず、コネクションポイントは解放される。
+	 * @throws RuntimeException 解除に失敗した場合(HRESULTが失敗を示す場合)
+	 */
+	void unadvise();
+
+	/**
+	 * 接続が有効であるか確認する.
+	 * Adviseした自身の接続が、まだコネクションポイントに登録されていることを確認する。
+	 * @return 有効であればtrue
+	 */
+	boolean probe();
+}
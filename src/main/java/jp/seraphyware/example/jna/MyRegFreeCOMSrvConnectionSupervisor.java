@@ -0,0 +1,484 @@
+package jp.seraphyware.example.jna;
+
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.jna.platform.win32.WinError;
+import com.sun.jna.platform.win32.COM.IDispatchCallback;
+
+import jp.seraphyware.example.jna.AsyncLog.Level;
+import jp.seraphyware.example.jna.AsyncLog.Template;
+
+/**
+ * コネクションポイントへの接続を監視し、切断時に自動的に再接続する.
+ *
+ * 接続中は一定間隔で接続の有効性を確認し、無効であれば再接続中の状態に移る。
+ * 再接続中は指数的に間隔を延ばしながらAdviseを再試行する。
+ * 再接続には同じイベントシンクを使うので、登録されているJavaイベントリスナはそのまま引き継がれる。
+ *
+ * 切断中に発生したイベントは受け取れないため、再接続時にRecoveryHandlerで
+ * COMオブジェクトの状態を確認し、取りこぼしたイベントを補うことができる。
+ *
+ * 呼び出しが切断を示すHRESULTで失敗した場合は、callFailedで通知すれば次のpollで再接続する。
+ *
+ * このクラスはスレッドセーフではない。
+ * COMオブジェクトを所有するアパートメントスレッドから、pollを定期的に呼び出すこと。
+ * (scheduleで、アパートメントスレッドのScheduledExecutorServiceに登録できる。
+ * 状態と統計値は他のスレッドからも参照できる。)
+ */
+public class MyRegFreeCOMSrvConnectionSupervisor {
+
+	/**
+	 * 接続の状態
+	 */
+	public enum State {
+
+		/**
+		 * 未接続
+		 */
+		DISCONNECTED,
+
+		/**
+		 * 接続中
+		 */
+		CONNECTED,
+
+		/**
+		 * 切断され、再接続を試行中
+		 */
+		RECONNECTING,
+
+		/**
+		 * 閉じられた
+		 */
+		CLOSED
+	}
+
+	/**
+	 * 監視と再接続の間隔
+	 */
+	public static final class Policy {
+
+		private long probeIntervalNanos = TimeUnit.SECONDS.toNanos(5);
+
+		private long initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+		private long maxBackoffNanos = TimeUnit.SECONDS.toNanos(30);
+
+		private double multiplier = 2;
+
+		/**
+		 * 接続の有効性を確認する間隔
+		 */
+		public Policy setProbeInterval(long duration, TimeUnit unit) {
+			this.probeIntervalNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		/**
+		 * 再接続に失敗したあと、最初に再試行するまでの間隔
+		 */
+		public Policy setInitialBackoff(long duration, TimeUnit unit) {
+			this.initialBackoffNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		/**
+		 * 再試行の間隔の上限
+		 */
+		public Policy setMaxBackoff(long duration, TimeUnit unit) {
+			this.maxBackoffNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		/**
+		 * 再試行に失敗するごとに間隔に掛ける倍率
+		 */
+		public Policy setMultiplier(double multiplier) {
+			if (multiplier < 1) {
+				throw new IllegalArgumentException("multiplier=" + multiplier);
+			}
+			this.multiplier = multiplier;
+			return this;
+		}
+	}
+
+	/**
+	 * 再接続時に、切断中に取りこぼしたイベントを補うためのハンドラ.
+	 * ハンドラの中でcallFailedにより切断が通知された場合は、再接続は失敗したものとして扱う。
+	 */
+	public interface RecoveryHandler {
+
+		/**
+		 * 再接続された
+		 * @param outageNanos 切断されていた時間
+		 * @return 取りこぼしていたことが判明したイベント数
+		 */
+		int recovered(long outageNanos);
+	}
+
+	/**
+	 * COMExceptionのメッセージに含まれるHRESULT.
+	 * (JNA 4.5.1のCOMExceptionはHRESULTを保持せず、COMUtils.checkRCがメッセージに埋め込むだけである。)
+	 */
+	private static final Pattern HRESULT_PATTERN = Pattern.compile("\\(HRESULT: ([0-9a-fA-F]{1,8})\\)");
+
+	/**
+	 * RPC_S_SERVER_UNAVAILABLEのHRESULT (HRESULT_FROM_WIN32)
+	 */
+	private static final int HRESULT_RPC_S_SERVER_UNAVAILABLE =
+			0x80070000 | WinError.RPC_S_SERVER_UNAVAILABLE;
+
+	private static final AsyncLog LOG = AsyncLog.getDefault();
+
+	private static final Template CONNECTION_LOST = AsyncLog.template("connection lost: {}");
+
+	private static final Template CALL_FAILED = AsyncLog.template("call failed with disconnection: {}");
+
+	private static final Template ADVISE_FAILED = AsyncLog.template("advise failed: attempt={}, {}");
+
+	private static final Template UNADVISE_FAILED = AsyncLog.template("unadvise failed: {}");
+
+	private static final Template RESYNC_FAILED = AsyncLog.template("resync failed: {}");
+
+	private static final Template RECOVERED = AsyncLog.template("connection recovered: outage={}ms, missed={}");
+
+	private final MyRegFreeCOMSrvConnectionBackend backend;
+
+	private final IDispatchCallback sink;
+
+	private final Policy policy;
+
+	private final LongSupplier clock;
+
+	private RecoveryHandler recoveryHandler;
+
+	private volatile State state = State.DISCONNECTED;
+
+	/**
+	 * 次に接続を確認、または再接続を試行する時刻
+	 */
+	private long nextActionAt;
+
+	/**
+	 * 切断を検出した時刻
+	 */
+	private long outageStartedAt;
+
+	/**
+	 * 今回の切断中に再接続に失敗した回数
+	 */
+	private int attempts;
+
+	private volatile long reconnectCount;
+
+	private volatile long failedAttempts;
+
+	private volatile long lastRecoveryNanos;
+
+	private volatile long totalOutageNanos;
+
+	private volatile long missedEvents;
+
+	/**
+	 * コンストラクタ
+	 * @param backend コネクションポイントへの接続操作
+	 * @param sink 接続するイベントシンク
+	 * @param policy 監視と再接続の間隔
+	 */
+	public MyRegFreeCOMSrvConnectionSupervisor(MyRegFreeCOMSrvConnectionBackend backend,
+			IDispatchCallback sink, Policy policy) {
+		this(backend, sink, policy, System::nanoTime);
+	}
+
+	/**
+	 * 時計を指定するコンストラクタ (試験用)
+	 * @param backend コネクションポイントへの接続操作
+	 * @param sink 接続するイベントシンク
+	 * @param policy 監視と再接続の間隔
+	 * @param nanoClock ナノ秒単位の単調増加する時計
+	 */
+	public MyRegFreeCOMSrvConnectionSupervisor(MyRegFreeCOMSrvConnectionBackend backend,
+			IDispatchCallback sink, Policy policy, LongSupplier nanoClock) {
+		this.backend = Objects.requireNonNull(backend);
+		this.sink = Objects.requireNonNull(sink);
+		this.policy = Objects.requireNonNull(policy);
+		this.clock = Objects.requireNonNull(nanoClock);
+	}
+
+	public void setRecoveryHandler(RecoveryHandler recoveryHandler) {
+		this.recoveryHandler = recoveryHandler;
+	}
+
+	/**
+	 * 最初の接続を行う.
+	 * 失敗した場合は例外を送出し、再接続中の状態となる。
+	 * (以降、pollによって再接続が試行される。)
+	 * @throws RuntimeException 接続できなかった場合
+	 */
+	public void connect() {
+		if (state != State.DISCONNECTED) {
+			throw new IllegalStateException("state=" + state);
+		}
+		long now = clock.getAsLong();
+		try {
+			backend.advise(sink);
+
+		} catch (RuntimeException ex) {
+			state = State.RECONNECTING;
+			outageStartedAt = now;
+			attempts = 1;
+			failedAttempts++;
+			nextActionAt = now + policy.initialBackoffNanos;
+			throw ex;
+		}
+		state = State.CONNECTED;
+		nextActionAt = now + policy.probeIntervalNanos;
+	}
+
+	/**
+	 * 接続の確認、または再接続の試行を、必要な時期であれば行う.
+	 * アパートメントスレッドから定期的に呼び出すこと。
+	 * @return 現在の状態
+	 */
+	public State poll() {
+		long now = clock.getAsLong();
+		if (now - nextActionAt < 0) {
+			return state;
+		}
+		switch (state) {
+		case CONNECTED: {
+			boolean alive;
+			try {
+				alive = backend.probe();
+
+			} catch (RuntimeException ex) {
+				alive = false;
+			}
+			if (alive) {
+				nextActionAt = now + policy.probeIntervalNanos;
+			} else {
+				lost(now, "probe failed");
+			}
+			break;
+		}
+
+		case RECONNECTING:
+			reconnect(now);
+			break;
+
+		default:
+			break;
+		}
+		return state;
+	}
+
+	/**
+	 * COMの呼び出しの失敗を通知する.
+	 * COMサーバとの切断を示すHRESULTであれば、接続が失われたものとして次のpollで再接続する。
+	 * @param ex 呼び出しで発生した例外
+	 */
+	public void callFailed(RuntimeException ex) {
+		if (isDisconnected(ex)) {
+			LOG.log(Level.DEBUG, CALL_FAILED, ex);
+			connectionLost();
+		}
+	}
+
+	/**
+	 * 例外がCOMサーバとの切断を示すHRESULTによるものか判定する
+	 * @param ex COMの呼び出しで発生した例外
+	 * @return 切断によるものであればtrue
+	 */
+	public static boolean isDisconnected(RuntimeException ex) {
+		String message = ex.getMessage();
+		if (message == null) {
+			return false;
+		}
+		Matcher matcher = HRESULT_PATTERN.matcher(message);
+		return matcher.find() && isDisconnected(Integer.parseUnsignedInt(matcher.group(1), 16));
+	}
+
+	/**
+	 * HRESULTがCOMサーバとの切断を示すものか判定する
+	 * @param hresult HRESULT
+	 * @return 切断を示すものであればtrue
+	 */
+	public static boolean isDisconnected(int hresult) {
+		switch (hresult) {
+		case WinError.RPC_E_DISCONNECTED:
+		case WinError.RPC_E_SERVER_DIED:
+		case WinError.RPC_E_SERVER_DIED_DNE:
+		case WinError.CO_E_OBJNOTCONNECTED:
+		case HRESULT_RPC_S_SERVER_UNAVAILABLE:
+			return true;
+
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * 呼び出しの失敗などから接続が失われたことが分かった場合に通知する.
+	 * 次のpollで再接続が試行される。
+	 */
+	public void connectionLost() {
+		if (state == State.CONNECTED) {
+			lost(clock.getAsLong(), "reported");
+		}
+	}
+
+	private void lost(long now, String reason) {
+		LOG.log(Level.WARN, CONNECTION_LOST, reason);
+		try {
+			backend.unadvise();
+
+		} catch (RuntimeException ex) {
+			// 切断されているので解除できないことは想定内
+			LOG.log(Level.DEBUG, UNADVISE_FAILED, ex);
+		}
+		state = State.RECONNECTING;
+		outageStartedAt = now;
+		attempts = 0;
+		nextActionAt = now; // 最初の再接続はすぐに試行する
+	}
+
+	private void reconnect(long now) {
+		try {
+			backend.advise(sink);
+
+		} catch (RuntimeException ex) {
+			attempts++;
+			LOG.log(Level.WARN, ADVISE_FAILED, attempts, ex);
+			retryLater(now);
+			return;
+		}
+
+		long startedAt = outageStartedAt;
+		int prevAttempts = attempts;
+		long outage = now - startedAt;
+		state = State.CONNECTED;
+		nextActionAt = now + policy.probeIntervalNanos;
+
+		int missed = 0;
+		if (recoveryHandler != null) {
+			try {
+				missed = recoveryHandler.recovered(outage);
+				missedEvents += missed;
+
+			} catch (RuntimeException ex) {
+				// 接続は回復しているので、状態の確認に失敗しても監視は続ける
+				LOG.log(Level.WARN, RESYNC_FAILED, ex);
+			}
+		}
+
+		if (state == State.CLOSED) {
+			// ハンドラの中で閉じられた
+			return;
+		}
+		if (state != State.CONNECTED) {
+			// ハンドラの中でcallFailedにより再び切断された。
+			// 回復していないので、切断は最初の検出から続いているものとし、再試行の失敗として扱う
+			outageStartedAt = startedAt;
+			attempts = prevAttempts + 1;
+			retryLater(now);
+			return;
+		}
+
+		reconnectCount++;
+		lastRecoveryNanos = outage;
+		totalOutageNanos += outage;
+		LOG.log(Level.INFO, RECOVERED, TimeUnit.NANOSECONDS.toMillis(outage), missed);
+	}
+
+	/**
+	 * 再接続に失敗したので、試行回数に応じて間隔を延ばして再試行する
+	 * @param now 現在時刻
+	 */
+	private void retryLater(long now) {
+		failedAttempts++;
+		double backoff = policy.initialBackoffNanos * Math.pow(policy.multiplier, attempts - 1);
+		nextActionAt = now + (long) Math.min(policy.maxBackoffNanos, backoff);
+	}
+
+	/**
+	 * 接続を解除して監視を終了する.
+	 * @throws RuntimeException 接続の解除に失敗した場合
+	 */
+	public void close() {
+		State prev = state;
+		state = State.CLOSED;
+		if (prev == State.CONNECTED) {
+			backend.unadvise();
+		}
+	}
+
+	/**
+	 * アパートメントスレッドのExecutorで、定期的にpollを呼び出すようにする.
+	 * 呼び出し間隔は、接続の確認間隔と再試行の初期間隔の短い方とする。
+	 * (Executorの停止で呼び出しも終了する。)
+	 * @param apartment COMオブジェクトを所有するスレッドのExecutor
+	 * @return スケジュール
+	 */
+	public ScheduledFuture<?> schedule(ScheduledExecutorService apartment) {
+		long period = Math.max(1, Math.min(policy.probeIntervalNanos, policy.initialBackoffNanos));
+		return schedule(apartment, period, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * アパートメントスレッドのExecutorで、定期的にpollを呼び出すようにする
+	 * @param apartment COMオブジェクトを所有するスレッドのExecutor
+	 * @param period 呼び出し間隔
+	 * @param unit 呼び出し間隔の単位
+	 * @return スケジュール
+	 */
+	public ScheduledFuture<?> schedule(ScheduledExecutorService apartment, long period, TimeUnit unit) {
+		return apartment.scheduleWithFixedDelay(this::poll, period, period, unit);
+	}
+
+	// ------- 状態と統計値 -------
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * 再接続に成功した回数
+	 */
+	public long getReconnectCount() {
+		return reconnectCount;
+	}
+
+	/**
+	 * 接続・再接続に失敗した回数
+	 */
+	public long getFailedAttempts() {
+		return failedAttempts;
+	}
+
+	/**
+	 * 直近の切断の検出から再接続までの時間(ナノ秒)
+	 */
+	public long getLastRecoveryNanos() {
+		return lastRecoveryNanos;
+	}
+
+	/**
+	 * 切断されていた時間の合計(ナノ秒)
+	 */
+	public long getTotalOutageNanos() {
+		return totalOutageNanos;
+	}
+
+	/**
+	 * 再接続時に取りこぼしていたことが判明したイベント数
+	 */
+	public long getMissedEvents() {
+		return missedEvents;
+	}
+}
@@ -0,0 +1,91 @@
+package jp.seraphyware.example.jna;
+
+import java.util.Objects;
+import java.util.function.Supplier;
+
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.MyRegFreeCOMSrvEventListener;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.MyRegFreeCOMSrvEventsSink;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangedEvent;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangingEvent;
+
+/**
+ * 再接続時に、切断中に取りこぼしたNameプロパティの変更を補うハンドラ.
+ *
+ * COMは切断中に発生したイベントを再送しないので、イベントで通知された最後の名前を覚えておき、
+ * 再接続時に現在の名前と比較する。
+ * 異なっていれば、変更後のイベントをイベントシンクから通知し、取りこぼし1件として数える。
+ * (途中の変更や、変更前のイベントは補えない。)
+ *
+ * イベントシンクにリスナとして登録して使う。
+ * アパートメントスレッドからのみ呼び出されることを前提とする。
+ */
+public class MyRegFreeCOMSrvNameResync
+		implements MyRegFreeCOMSrvEventListener, MyRegFreeCOMSrvConnectionSupervisor.RecoveryHandler {
+
+	private final Supplier<String> nameSupplier;
+
+	private final MyRegFreeCOMSrvEventsSink sink;
+
+	/**
+	 * 最後の名前が分かっているか
+	 */
+	private boolean known;
+
+	/**
+	 * 最後に確認した名前 (nullもありうる)
+	 */
+	private String lastKnownName;
+
+	/**
+	 * コンストラクタ
+	 * @param nameSupplier 現在の名前の取得
+	 * @param sink 補ったイベントを通知するイベントシンク
+	 */
+	public MyRegFreeCOMSrvNameResync(Supplier<String> nameSupplier, MyRegFreeCOMSrvEventsSink sink) {
+		this.nameSupplier = Objects.requireNonNull(nameSupplier);
+		this.sink = Objects.requireNonNull(sink);
+	}
+
+	/**
+	 * 現在の名前を取得して、比較の基準とする
+	 */
+	public void reset() {
+		lastKnownName = nameSupplier.get();
+		known = true;
+	}
+
+	@Override
+	public void namePropertyChanging(NamePropertyChangingEvent evt) {
+		// 変更は確定していないので何もしない
+	}
+
+	@Override
+	public void namePropertyChanged(NamePropertyChangedEvent evt) {
+		lastKnownName = evt.getName();
+		known = true;
+	}
+
+	@Override
+	public int recovered(long outageNanos) {
+		String name = nameSupplier.get();
+		if (!known || Objects.equals(name, lastKnownName)) {
+			// 基準がなければ、今回の名前を基準とするだけ
+			lastKnownName = name;
+			known = true;
+			return 0;
+		}
+		lastKnownName = name;
+		NamePropertyChangedEvent evt = new NamePropertyChangedEvent();
+		evt.setName(name);
+		sink.fireNamePropertyChanged(evt);
+		return 1;
+	}
+
+	/**
+	 * 最後に確認した名前
+	 * @return 名前
+	 */
+	public String getLastKnownName() {
+		return lastKnownName;
+	}
+}
@@ -0,0 +1,451 @@
+package jp.seraphyware.example.jna;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.seraphyware.example.jna.AsyncLog.Level;
+import jp.seraphyware.example.jna.AsyncLog.Template;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.MyRegFreeCOMSrvEventListener;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.MyRegFreeCOMSrvEventsSink;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangedEvent;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangingEvent;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrvProtocol.Frame;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrvProtocol.FrameReader;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrvProtocol.FrameWriter;
+
+/**
+ * 子プロセスのMyRegFreeCOMSrvWorker上でMyRegFreeCOMSrvを動かし、
+ * 親プロセスからMyRegFreeCOMSrvと同じように操作するためのプロキシ.
+ *
+ * 要求は応答を待たずに送信できる(xxxAsyncメソッド)ので、複数の要求をパイプラインで処理できる。
+ * 子プロセスからのイベントは、応答を受信するスレッド上でリスナに通知される。
+ * (リスナ内で、このオブジェクトへの要求の完了を待つとデッドロックするので注意。)
+ *
+ * 子プロセスが異常終了した場合は処理中の要求をすべて失敗とし、
+ * 次の要求時に、指定回数までは子プロセスを再起動する。
+ * イベントリスナは親プロセス側で保持しているので、再起動後もそのまま引き継がれる。
+ */
+public class MyRegFreeCOMSrvProcess implements IMyRegFreeCOMSrv {
+
+	/**
+	 * 子プロセスでの要求の失敗、または子プロセスの異常終了を示す例外
+	 */
+	public static class WorkerException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		public WorkerException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * 子プロセスを終了要求後に待機する時間(ミリ秒)
+	 */
+	private static final long SHUTDOWN_TIMEOUT_MILLIS = 5000;
+
+	private static final AsyncLog LOG = AsyncLog.getDefault();
+
+	private static final Template READ_FAILED = AsyncLog.template("read from worker failed: {}");
+
+	private static final Template LISTENER_FAILED = AsyncLog.template("event listener failed: {}");
+
+	/**
+	 * 子プロセスとの1回分の接続
+	 */
+	private final class Connection {
+
+		private final Process process;
+
+		private final FrameWriter writer;
+
+		private final FrameReader reader;
+
+		/**
+		 * 応答待ちの要求
+		 */
+		private final ConcurrentHashMap<Integer, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+
+		private final Thread readerThread;
+
+		private volatile boolean alive = true;
+
+		Connection(Process process) {
+			this.process = process;
+			this.writer = new FrameWriter(process.getOutputStream());
+			this.reader = new FrameReader(process.getInputStream());
+			this.readerThread = new Thread(this::readLoop,
+					MyRegFreeCOMSrvProcess.class.getSimpleName() + "-reader");
+			this.readerThread.setDaemon(true);
+			this.readerThread.start();
+		}
+
+		/**
+		 * 子プロセスからの応答とイベントを受信して振り分ける
+		 */
+		private void readLoop() {
+			try {
+				Frame frame;
+				while ((frame = reader.read()) != null) {
+					switch (frame.type) {
+					case MyRegFreeCOMSrvProtocol.RES_OK:
+					case MyRegFreeCOMSrvProtocol.RES_ERROR: {
+						CompletableFuture<String> future = pending.remove(frame.id);
+						if (future != null) {
+							if (frame.type == MyRegFreeCOMSrvProtocol.RES_OK) {
+								future.complete(frame.text);
+							} else {
+								future.completeExceptionally(new WorkerException(frame.text));
+							}
+						}
+						break;
+					}
+
+					case MyRegFreeCOMSrvProtocol.EVENT_CHANGING: {
+						NamePropertyChangingEvent evt = new NamePropertyChangingEvent();
+						evt.setName(frame.text);
+						evt.setCancel(frame.flag);
+						try {
+							eventSink.fireNamePropertyChanging(evt);
+
+						} catch (RuntimeException ex) {
+							// リスナの不具合で子プロセスとの接続を失わないように、記録して受信を続ける
+							LOG.log(Level.WARN, LISTENER_FAILED, ex);
+						}
+						// 子プロセスのアパートメントスレッドは結果を待っているので、必ず返す
+						writer.write(MyRegFreeCOMSrvProtocol.EVENT_REPLY, frame.id, evt.isCancel());
+						break;
+					}
+
+					case MyRegFreeCOMSrvProtocol.EVENT_CHANGED: {
+						NamePropertyChangedEvent evt = new NamePropertyChangedEvent();
+						evt.setName(frame.text);
+						try {
+							eventSink.fireNamePropertyChanged(evt);
+
+						} catch (RuntimeException ex) {
+							LOG.log(Level.WARN, LISTENER_FAILED, ex);
+						}
+						break;
+					}
+
+					default:
+						throw new IOException("unexpected frame: " + frame);
+					}
+				}
+
+			} catch (IOException | RuntimeException ex) {
+				// 子プロセスの終了に伴いストリームが閉じられた場合は、異常終了として扱うだけでよい
+				if (alive && !exited()) {
+					LOG.log(Level.ERROR, READ_FAILED, ex);
+				}
+
+			} finally {
+				terminated();
+			}
+		}
+
+		/**
+		 * 子プロセスが終了しているか.
+		 * (ストリームが閉じられてから終了が確定するまでの間は、少し待つ。)
+		 * @return 終了していればtrue
+		 */
+		private boolean exited() {
+			try {
+				return process.waitFor(1, TimeUnit.SECONDS);
+
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		/**
+		 * 子プロセスが終了したので、応答待ちの要求をすべて失敗させる
+		 */
+		private void terminated() {
+			alive = false;
+			process.destroy();
+			String message = "worker terminated";
+			try {
+				if (process.waitFor(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+					message += ": exitValue=" + process.exitValue();
+				}
+
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			WorkerException cause = new WorkerException(message);
+			pending.values().forEach(future -> future.completeExceptionally(cause));
+			pending.clear();
+		}
+
+		/**
+		 * 要求を送信する
+		 * @param type 要求の種類
+		 * @param text 要求の引数
+		 * @return 応答
+		 */
+		CompletableFuture<String> send(byte type, String text) {
+			int id = requestIdSeq.incrementAndGet();
+			CompletableFuture<String> future = new CompletableFuture<>();
+			pending.put(id, future);
+			try {
+				if (type == MyRegFreeCOMSrvProtocol.REQ_SET_NAME) {
+					writer.write(type, id, text);
+				} else {
+					writer.write(type, id);
+				}
+
+			} catch (IOException ex) {
+				pending.remove(id);
+				future.completeExceptionally(new UncheckedIOException(ex));
+
+			} catch (IllegalArgumentException ex) {
+				// 最大長を超える要求は送信されないので、この要求だけを失敗させる
+				pending.remove(id);
+				future.completeExceptionally(ex);
+			}
+			if (!alive && pending.remove(id) != null) {
+				// 受信スレッドが応答待ちを失敗させた後に登録された場合
+				future.completeExceptionally(new WorkerException("worker terminated"));
+			}
+			return future;
+		}
+
+		void shutdown() {
+			alive = false;
+			try {
+				writer.write(MyRegFreeCOMSrvProtocol.REQ_CLOSE, 0);
+				writer.close();
+
+			} catch (IOException ex) {
+				// すでに子プロセスが終了している
+			}
+			try {
+				if (!process.waitFor(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+					process.destroyForcibly();
+				}
+				readerThread.join();
+
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				process.destroyForcibly();
+			}
+		}
+	}
+
+	private final List<String> command;
+
+	private final int maxRestarts;
+
+	/**
+	 * イベントシンク.
+	 * 子プロセスからのイベントをJavaのリスナに通知するために使う。
+	 */
+	private final MyRegFreeCOMSrvEventsSink eventSink = new MyRegFreeCOMSrvEventsSink();
+
+	private final AtomicInteger requestIdSeq = new AtomicInteger();
+
+	/**
+	 * 現在の接続 (lockで保護)
+	 */
+	private Connection connection;
+
+	/**
+	 * 再起動した回数 (lockで保護)
+	 */
+	private int restartCount;
+
+	/**
+	 * 閉じられているか (lockで保護)
+	 */
+	private boolean closed;
+
+	private final Object lock = new Object();
+
+	/**
+	 * このJavaと同じJava、クラスパスでワーカーを起動するコマンドを作成する
+	 * @param workerArgs ワーカーの引数
+	 * @return コマンド
+	 */
+	public static List<String> javaCommand(String... workerArgs) {
+		List<String> command = new ArrayList<>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(MyRegFreeCOMSrvWorker.class.getName());
+		command.addAll(Arrays.asList(workerArgs));
+		return command;
+	}
+
+	/**
+	 * このJavaと同じJava、クラスパスでワーカーを起動するコンストラクタ
+	 * @param workerArgs ワーカーの引数
+	 */
+	public MyRegFreeCOMSrvProcess(String... workerArgs) {
+		this(javaCommand(workerArgs), 3);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param command ワーカーを起動するコマンド
+	 * @param maxRestarts 子プロセスの異常終了時に再起動する最大回数
+	 */
+	public MyRegFreeCOMSrvProcess(List<String> command, int maxRestarts) {
+		this.command = new ArrayList<>(command);
+		this.maxRestarts = maxRestarts;
+		synchronized (lock) {
+			connection = start();
+		}
+	}
+
+	private Connection start() {
+		ProcessBuilder pb = new ProcessBuilder(command);
+		pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+		try {
+			return new Connection(pb.start());
+
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * 現在の接続を取得する.
+	 * 子プロセスが終了していれば、再起動回数の上限まで再起動する。
+	 * @return 接続
+	 */
+	private Connection connection() {
+		synchronized (lock) {
+			if (closed) {
+				throw new IllegalStateException("already closed");
+			}
+			if (!connection.alive) {
+				if (restartCount >= maxRestarts) {
+					throw new WorkerException("worker terminated: restartCount=" + restartCount);
+				}
+				restartCount++;
+				connection = start();
+			}
+			return connection;
+		}
+	}
+
+	/**
+	 * 子プロセスが実行中であるか
+	 * @return 実行中であればtrue
+	 */
+	public boolean isAlive() {
+		synchronized (lock) {
+			return !closed && connection.alive;
+		}
+	}
+
+	/**
+	 * 子プロセスを再起動した回数
+	 * @return 回数
+	 */
+	public int getRestartCount() {
+		synchronized (lock) {
+			return restartCount;
+		}
+	}
+
+	/**
+	 * 現在の子プロセス (試験用)
+	 */
+	Process getProcess() {
+		synchronized (lock) {
+			return connection.process;
+		}
+	}
+
+	private static <T> T await(CompletableFuture<T> future) {
+		try {
+			return future.join();
+
+		} catch (CompletionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	// ------- イベントリスナの追加・削除 -------
+
+	@Override
+	public void addListener(MyRegFreeCOMSrvEventListener l) {
+		eventSink.addListener(l);
+	}
+
+	@Override
+	public MyRegFreeCOMSrvSubscription addListener(MyRegFreeCOMSrvEventListener l,
+			MyRegFreeCOMSrvSubscription.Options options) {
+		return eventSink.addListener(l, options);
+	}
+
+	@Override
+	public void removeListener(MyRegFreeCOMSrvEventListener l) {
+		eventSink.removeListener(l);
+	}
+
+	// ------- COMプロパティ・メソッドの呼び出し -------
+
+	public CompletableFuture<String> getNameAsync() {
+		return connection().send(MyRegFreeCOMSrvProtocol.REQ_GET_NAME, null);
+	}
+
+	public CompletableFuture<Void> setNameAsync(String name) {
+		return connection().send(MyRegFreeCOMSrvProtocol.REQ_SET_NAME, name).thenApply(r -> null);
+	}
+
+	public CompletableFuture<Void> ShowHelloAsync() {
+		return connection().send(MyRegFreeCOMSrvProtocol.REQ_SHOW_HELLO, null).thenApply(r -> null);
+	}
+
+	@Override
+	public String getName() {
+		return await(getNameAsync());
+	}
+
+	@Override
+	public void setName(String name) {
+		await(setNameAsync(name));
+	}
+
+	@Override
+	public void ShowHello() {
+		await(ShowHelloAsync());
+	}
+
+	/**
+	 * 子プロセスに終了を要求して、終了するまで待つ
+	 */
+	@Override
+	public void close() {
+		Connection conn;
+		synchronized (lock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			conn = connection;
+		}
+		conn.shutdown();
+	}
+}
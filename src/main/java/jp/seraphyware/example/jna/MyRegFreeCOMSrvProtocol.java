@@ -0,0 +1,278 @@
+package jp.seraphyware.example.jna;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 子プロセスのMyRegFreeCOMSrvWorkerと親プロセスのMyRegFreeCOMSrvProcessの間でやりとりする
+ * バイナリプロトコルの定義.
+ *
+ * 1つのフレームは以下の形式となる。(数値はすべてビッグエンディアン)
+ * <pre>
+ * int  length  以降のバイト数 (type + id + payload)
+ * byte type    フレームの種類
+ * int  id      要求ID、またはイベントID
+ * byte[]       種類ごとのペイロード
+ * </pre>
+ * 文字列は、UTF-8のバイト数(int, nullの場合は-1)とバイト列で表す。
+ *
+ * 要求は応答を待たずに続けて送信できる(パイプライン)。応答は要求IDで対応づける。
+ * 子プロセスからのイベントは応答と同じ経路に多重化されて送られてくる。
+ * NamePropertyChangingイベントはキャンセルの可否を返す必要があるため、
+ * 親プロセスはイベントIDを指定してEVENT_REPLYを返す。
+ */
+final class MyRegFreeCOMSrvProtocol {
+
+	// ------- 親 → 子 -------
+
+	/**
+	 * Nameプロパティの取得要求
+	 */
+	static final byte REQ_GET_NAME = 0x01;
+
+	/**
+	 * Nameプロパティの設定要求 (payload: 名前)
+	 */
+	static final byte REQ_SET_NAME = 0x02;
+
+	/**
+	 * ShowHelloメソッドの呼び出し要求
+	 */
+	static final byte REQ_SHOW_HELLO = 0x03;
+
+	/**
+	 * 終了要求
+	 */
+	static final byte REQ_CLOSE = 0x04;
+
+	/**
+	 * NamePropertyChangingイベントの結果 (payload: cancel)
+	 */
+	static final byte EVENT_REPLY = 0x05;
+
+	// ------- 子 → 親 -------
+
+	/**
+	 * 要求の正常終了 (payload: 戻り値の文字列)
+	 */
+	static final byte RES_OK = 0x41;
+
+	/**
+	 * 要求の異常終了 (payload: 例外の説明)
+	 */
+	static final byte RES_ERROR = 0x42;
+
+	/**
+	 * NamePropertyChangingイベント (payload: 名前, cancel)
+	 */
+	static final byte EVENT_CHANGING = 0x51;
+
+	/**
+	 * NamePropertyChangedイベント (payload: 名前)
+	 */
+	static final byte EVENT_CHANGED = 0x52;
+
+	/**
+	 * 1フレームの最大長.
+	 * ストリームが壊れている場合に巨大なバッファを確保しないようにする。
+	 */
+	static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+	private MyRegFreeCOMSrvProtocol() {
+		super();
+	}
+
+	/**
+	 * 受信したフレーム
+	 */
+	static final class Frame {
+
+		final byte type;
+
+		final int id;
+
+		final String text;
+
+		final boolean flag;
+
+		Frame(byte type, int id, String text, boolean flag) {
+			this.type = type;
+			this.id = id;
+			this.text = text;
+			this.flag = flag;
+		}
+
+		@Override
+		public String toString() {
+			return "type=" + type + ", id=" + id + ", text=" + text + ", flag=" + flag;
+		}
+	}
+
+	/**
+	 * フレームの書き込み.
+	 * 複数のスレッドから書き込まれるため、フレーム単位で排他する。
+	 * 最大長を超えるフレームは、相手側で読み込めずに接続が失われるので、書き込まずに例外とする。
+	 */
+	static final class FrameWriter {
+
+		private final DataOutputStream dos;
+
+		FrameWriter(OutputStream os) {
+			this.dos = new DataOutputStream(new BufferedOutputStream(os));
+		}
+
+		void write(byte type, int id) throws IOException {
+			synchronized (dos) {
+				dos.writeInt(5);
+				dos.writeByte(type);
+				dos.writeInt(id);
+				dos.flush();
+			}
+		}
+
+		void write(byte type, int id, boolean flag) throws IOException {
+			synchronized (dos) {
+				dos.writeInt(6);
+				dos.writeByte(type);
+				dos.writeInt(id);
+				dos.writeBoolean(flag);
+				dos.flush();
+			}
+		}
+
+		void write(byte type, int id, String text) throws IOException {
+			byte[] data = text != null ? text.getBytes(StandardCharsets.UTF_8) : null;
+			int length = checkLength(9L + (data != null ? data.length : 0));
+			synchronized (dos) {
+				dos.writeInt(length);
+				dos.writeByte(type);
+				dos.writeInt(id);
+				writeBytes(data);
+				dos.flush();
+			}
+		}
+
+		void write(byte type, int id, String text, boolean flag) throws IOException {
+			byte[] data = text != null ? text.getBytes(StandardCharsets.UTF_8) : null;
+			int length = checkLength(10L + (data != null ? data.length : 0));
+			synchronized (dos) {
+				dos.writeInt(length);
+				dos.writeByte(type);
+				dos.writeInt(id);
+				writeBytes(data);
+				dos.writeBoolean(flag);
+				dos.flush();
+			}
+		}
+
+		/**
+		 * フレームの長さが最大長以下であることを確認する
+		 * @param length フレームの長さ
+		 * @return フレームの長さ
+		 * @throws IllegalArgumentException 最大長を超える場合
+		 */
+		private static int checkLength(long length) {
+			if (length > MAX_FRAME_LENGTH) {
+				throw new IllegalArgumentException("frame too large: " + length + " > " + MAX_FRAME_LENGTH);
+			}
+			return (int) length;
+		}
+
+		private void writeBytes(byte[] data) throws IOException {
+			if (data == null) {
+				dos.writeInt(-1);
+			} else {
+				dos.writeInt(data.length);
+				dos.write(data);
+			}
+		}
+
+		void close() throws IOException {
+			dos.close();
+		}
+	}
+
+	/**
+	 * フレームの読み込み.
+	 * 単一のスレッドから読み込まれることを前提とする。
+	 */
+	static final class FrameReader {
+
+		private final DataInputStream dis;
+
+		FrameReader(InputStream is) {
+			this.dis = new DataInputStream(new BufferedInputStream(is));
+		}
+
+		/**
+		 * 次のフレームを読み込む
+		 * @return フレーム、ストリームの終端の場合はnull
+		 * @throws IOException
+		 */
+		Frame read() throws IOException {
+			int length;
+			try {
+				length = dis.readInt();
+
+			} catch (EOFException ex) {
+				return null;
+			}
+			if (length < 5 || length > MAX_FRAME_LENGTH) {
+				throw new IOException("invalid frame length: " + length);
+			}
+			byte type = dis.readByte();
+			int id = dis.readInt();
+			int remain = length - 5;
+
+			String text = null;
+			boolean flag = false;
+			switch (type) {
+			case REQ_SET_NAME:
+			case RES_OK:
+			case RES_ERROR:
+			case EVENT_CHANGED:
+				text = readString(remain);
+				break;
+
+			case EVENT_CHANGING:
+				text = readString(remain - 1);
+				flag = dis.readBoolean();
+				break;
+
+			case EVENT_REPLY:
+				flag = dis.readBoolean();
+				break;
+
+			case REQ_GET_NAME:
+			case REQ_SHOW_HELLO:
+			case REQ_CLOSE:
+				dis.skipBytes(remain);
+				break;
+
+			default:
+				throw new IOException("unknown frame type: " + type);
+			}
+			return new Frame(type, id, text, flag);
+		}
+
+		private String readString(int remain) throws IOException {
+			int len = dis.readInt();
+			if (len < 0) {
+				return null;
+			}
+			if (len != remain - 4) {
+				throw new IOException("invalid string length: " + len);
+			}
+			byte[] data = new byte[len];
+			dis.readFully(data);
+			return new String(data, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,432 @@
+package jp.seraphyware.example.jna;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.sun.jna.platform.win32.Ole32;
+
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.MyRegFreeCOMSrvEventListener;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangedEvent;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangingEvent;
+
+/**
+ * 複数のMyRegFreeCOMSrvを、それぞれ専用のアパートメントスレッド上に構築して並列に利用するファサード.
+ *
+ * STAのCOMオブジェクトは生成したスレッドに束縛されるため、1インスタンスあたりのスループットは
+ * 1スレッド分が上限となる。
+ * そこでインスタンスを複数のシャードに分けて、キーによるコンシステントハッシュ、
+ * または処理中の要求が最も少ないシャードへ振り分けることで並列に処理できるようにする。
+ *
+ * 各シャードからのイベントは、シャードIDをつけて1つのリスナ登録先にまとめて通知される。
+ * (イベントは各シャードのアパートメントスレッド上で通知される。
+ * リスナ内から同じシャードの完了を同期的に待つとデッドロックするので注意。)
+ *
+ * インスタンスがコネクションポイントへの接続を監視する場合は、
+ * 各シャードのアパートメントスレッド上で定期的に監視と再接続が行われる。
+ */
+public class MyRegFreeCOMSrvShards implements AutoCloseable {
+
+	/**
+	 * 要求をシャードに振り分ける方法
+	 */
+	public enum Routing {
+
+		/**
+		 * キーのコンシステントハッシュによる振り分け.
+		 * 同じキーは常に同じシャードで処理される。
+		 */
+		CONSISTENT_HASH,
+
+		/**
+		 * 処理中の要求が最も少ないシャードへの振り分け.
+		 * キーは使われない。
+		 */
+		LEAST_LOADED
+	}
+
+	/**
+	 * シャードIDつきでイベントを受け取るインターフェイス
+	 */
+	public interface ShardEventListener {
+
+		/**
+		 * 名前が変更される前のイベント
+		 * @param shardId イベントを発生させたシャード
+		 * @param evt
+		 */
+		void namePropertyChanging(int shardId, NamePropertyChangingEvent evt);
+
+		/**
+		 * 名前が変更された後のイベント
+		 * @param shardId イベントを発生させたシャード
+		 * @param evt
+		 */
+		void namePropertyChanged(int shardId, NamePropertyChangedEvent evt);
+	}
+
+	/**
+	 * コンシステントハッシュのリング上に配置する、1シャードあたりの仮想ノード数
+	 */
+	private static final int VIRTUAL_NODES = 64;
+
+	/**
+	 * シャード.
+	 * 1つのアパートメントスレッドと、そのスレッドで構築されたCOMオブジェクトの組。
+	 */
+	private final class Shard implements MyRegFreeCOMSrvEventListener {
+
+		private final int shardId;
+
+		/**
+		 * アパートメントスレッド.
+		 * (接続の監視を定期的に実行できるように、ScheduledExecutorServiceとする。)
+		 */
+		private final ScheduledExecutorService apartment;
+
+		/**
+		 * 投入済みで未完了の要求数
+		 */
+		private final AtomicInteger inFlight = new AtomicInteger();
+
+		/**
+		 * COMオブジェクト。アパートメントスレッドからのみアクセスする。
+		 */
+		private IMyRegFreeCOMSrv srv;
+
+		Shard(int shardId, ThreadFactory threadFactory) {
+			this.shardId = shardId;
+			this.apartment = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = threadFactory.newThread(r);
+				t.setName(MyRegFreeCOMSrvShards.class.getSimpleName() + "-" + shardId);
+				t.setDaemon(true);
+				return t;
+			});
+		}
+
+		@Override
+		public void namePropertyChanging(NamePropertyChangingEvent evt) {
+			for (ShardEventListener l : eventListeners) {
+				l.namePropertyChanging(shardId, evt);
+			}
+		}
+
+		@Override
+		public void namePropertyChanged(NamePropertyChangedEvent evt) {
+			for (ShardEventListener l : eventListeners) {
+				l.namePropertyChanged(shardId, evt);
+			}
+		}
+	}
+
+	private final Routing routing;
+
+	private final Shard[] shards;
+
+	/**
+	 * コンシステントハッシュのリング(ハッシュ値 → シャード)。構築後は変更しない。
+	 */
+	private final TreeMap<Integer, Shard> ring = new TreeMap<>();
+
+	/**
+	 * LEAST_LOADEDで負荷が同じ場合に、特定のシャードに偏らないようにするための探索開始位置
+	 */
+	private final AtomicInteger roundRobin = new AtomicInteger();
+
+	/**
+	 * シャードIDつきのイベントリスナを保持するリスト
+	 */
+	private final ConcurrentLinkedDeque<ShardEventListener> eventListeners = new ConcurrentLinkedDeque<>();
+
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	/**
+	 * STAで初期化したアパートメントスレッドごとに、
+	 * アクティベーションコンテキストを使ってレジストリフリーでMyRegFreeCOMSrvを構築する。
+	 * @param manifestFile マニフェストファイルのパス
+	 * @param shardCount シャード数
+	 * @param routing 振り分け方法
+	 * @return シャードのファサード
+	 */
+	public static MyRegFreeCOMSrvShards createSTA(String manifestFile, int shardCount, Routing routing) {
+		ThreadFactory sta = r -> new Thread(() -> {
+			Ole32.INSTANCE.CoInitializeEx(null, Ole32.COINIT_APARTMENTTHREADED);
+			try {
+				r.run();
+
+			} finally {
+				Ole32.INSTANCE.CoUninitialize();
+			}
+		});
+		return new MyRegFreeCOMSrvShards(shardCount, routing, sta,
+				() -> ActivationContextAPI.doActivate(manifestFile, () -> new MyRegFreeCOMSrv()));
+	}
+
+	/**
+	 * 既定のスレッドでシャードを構築するコンストラクタ.
+	 * (COMの初期化が不要な代替実装向け。)
+	 * @param shardCount シャード数
+	 * @param routing 振り分け方法
+	 * @param factory 各シャードのアパートメントスレッド上で呼び出されるインスタンスの生成処理
+	 */
+	public MyRegFreeCOMSrvShards(int shardCount, Routing routing,
+			Callable<? extends IMyRegFreeCOMSrv> factory) {
+		this(shardCount, routing, Executors.defaultThreadFactory(), factory);
+	}
+
+	/**
+	 * コンストラクタ.
+	 * すべてのシャードのインスタンスが構築されるまで待機する。
+	 * 1つでも構築に失敗した場合は、構築済みのシャードを閉じてから例外を送出する。
+	 * @param shardCount シャード数
+	 * @param routing 振り分け方法
+	 * @param threadFactory アパートメントスレッドを作成するファクトリ(COMの初期化・終了処理を含める)
+	 * @param factory 各シャードのアパートメントスレッド上で呼び出されるインスタンスの生成処理
+	 */
+	public MyRegFreeCOMSrvShards(int shardCount, Routing routing, ThreadFactory threadFactory,
+			Callable<? extends IMyRegFreeCOMSrv> factory) {
+		if (shardCount <= 0) {
+			throw new IllegalArgumentException("shardCount=" + shardCount);
+		}
+		this.routing = Objects.requireNonNull(routing);
+		Objects.requireNonNull(threadFactory);
+		Objects.requireNonNull(factory);
+
+		shards = new Shard[shardCount];
+		List<Future<?>> futures = new ArrayList<>();
+		for (int idx = 0; idx < shardCount; idx++) {
+			Shard shard = new Shard(idx, threadFactory);
+			shards[idx] = shard;
+			futures.add(shard.apartment.submit(() -> {
+				shard.srv = factory.call();
+				shard.srv.addListener(shard);
+				MyRegFreeCOMSrvConnectionSupervisor supervisor = shard.srv.getConnectionSupervisor();
+				if (supervisor != null) {
+					supervisor.schedule(shard.apartment);
+				}
+				return null;
+			}));
+
+			for (int vn = 0; vn < VIRTUAL_NODES; vn++) {
+				ring.putIfAbsent(mix(idx * VIRTUAL_NODES + vn), shard);
+			}
+		}
+
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+
+		} catch (Exception ex) {
+			close();
+			if (ex instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+			}
+			Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * ハッシュ値をリング上に散らすためのミキサ(MurmurHash3のfmix32)
+	 */
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	public Routing getRouting() {
+		return routing;
+	}
+
+	/**
+	 * シャードに投入済みで未完了の要求数
+	 * @param shardId シャード
+	 * @return 要求数
+	 */
+	public int getLoad(int shardId) {
+		return shards[shardId].inFlight.get();
+	}
+
+	/**
+	 * キーを処理するシャードを求める.
+	 * LEAST_LOADEDの場合はキーによらず、現時点で最も負荷の少ないシャードとなる。
+	 * @param key キー
+	 * @return シャードID
+	 */
+	public int shardOf(Object key) {
+		return route(key).shardId;
+	}
+
+	private Shard route(Object key) {
+		if (routing == Routing.LEAST_LOADED) {
+			int start = Math.floorMod(roundRobin.getAndIncrement(), shards.length);
+			Shard selected = shards[start];
+			int min = selected.inFlight.get();
+			for (int i = 1; i < shards.length && min > 0; i++) {
+				Shard shard = shards[(start + i) % shards.length];
+				int load = shard.inFlight.get();
+				if (load < min) {
+					selected = shard;
+					min = load;
+				}
+			}
+			return selected;
+		}
+
+		Map.Entry<Integer, Shard> entry = ring.ceilingEntry(mix(Objects.hashCode(key)));
+		if (entry == null) {
+			entry = ring.firstEntry();
+		}
+		return entry.getValue();
+	}
+
+	// ------- 要求の投入 -------
+
+	/**
+	 * キーで振り分けたシャードのアパートメントスレッド上で処理を非同期に実行する.
+	 * @param key 振り分けに使うキー
+	 * @param task シャードのインスタンスに対する処理
+	 * @return 処理結果
+	 */
+	public <T> CompletableFuture<T> submit(Object key, Function<? super IMyRegFreeCOMSrv, ? extends T> task) {
+		if (closed.get()) {
+			throw new IllegalStateException("already closed");
+		}
+		Shard shard = route(key);
+		CompletableFuture<T> future = new CompletableFuture<>();
+		shard.inFlight.incrementAndGet();
+		try {
+			shard.apartment.execute(() -> {
+				T result;
+				try {
+					result = task.apply(shard.srv);
+
+				} catch (Throwable ex) {
+					shard.inFlight.decrementAndGet();
+					future.completeExceptionally(ex);
+					return;
+				}
+				shard.inFlight.decrementAndGet();
+				future.complete(result);
+			});
+
+		} catch (RejectedExecutionException ex) {
+			shard.inFlight.decrementAndGet();
+			throw ex;
+		}
+		return future;
+	}
+
+	/**
+	 * キーで振り分けたシャードのアパートメントスレッド上で処理を実行し、完了を待つ.
+	 * (処理内で発生した例外は、非チェック例外はそのまま、それ以外はRuntimeExceptionにラップされる。)
+	 * @param key 振り分けに使うキー
+	 * @param task シャードのインスタンスに対する処理
+	 * @return 処理結果
+	 */
+	public <T> T call(Object key, Function<? super IMyRegFreeCOMSrv, ? extends T> task) {
+		try {
+			return submit(key, task).join();
+
+		} catch (CompletionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	// ------- イベントリスナの追加・削除 -------
+
+	public void addListener(ShardEventListener l) {
+		eventListeners.add(l);
+	}
+
+	public void removeListener(ShardEventListener l) {
+		eventListeners.remove(l);
+	}
+
+	// ------- COMプロパティ・メソッドの呼び出し -------
+
+	public String getName(Object key) {
+		return call(key, IMyRegFreeCOMSrv::getName);
+	}
+
+	public void setName(Object key, String name) {
+		call(key, srv -> {
+			srv.setName(name);
+			return null;
+		});
+	}
+
+	public void ShowHello(Object key) {
+		call(key, srv -> {
+			srv.ShowHello();
+			return null;
+		});
+	}
+
+	/**
+	 * すべてのシャードのインスタンスを、それぞれのアパートメントスレッド上で解放して
+	 * スレッドを終了する。
+	 */
+	@Override
+	public void close() {
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		for (Shard shard : shards) {
+			shard.apartment.execute(() -> {
+				if (shard.srv != null) {
+					shard.srv.removeListener(shard);
+					shard.srv.close();
+					shard.srv = null;
+				}
+			});
+			shard.apartment.shutdown();
+		}
+		for (Shard shard : shards) {
+			try {
+				shard.apartment.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+}
@@ -0,0 +1,342 @@
+package jp.seraphyware.example.jna;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.MyRegFreeCOMSrvEventListener;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.MyRegFreeCOMSrvEventsSink;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangedEvent;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangingEvent;
+
+/**
+ * イベントシンクに登録されたJavaイベントリスナと、DISPIDごとの配信方法.
+ *
+ * 高頻度でイベントが発生する場合でも、すべてのイベントを必要としないリスナ(監視用など)が
+ * COMのコールバックスレッドに負荷をかけないように、DISPIDごとに配信方法を選べる。
+ * <ul>
+ * <li>すべて配信する (既定)</li>
+ * <li>N件に1件だけ配信する</li>
+ * <li>トークンバケットによる流量制限</li>
+ * <li>最新のものだけを別スレッドで配信する</li>
+ * </ul>
+ * 配信方法ごとの状態はロックを使わずに更新され、配信数と破棄数が数えられる。
+ *
+ * リスナが削除されると登録は取り消され、配信待ちのイベントも破棄される。
+ */
+public final class MyRegFreeCOMSrvSubscription {
+
+	/**
+	 * DISPIDの最大値 (配列の大きさ)
+	 */
+	private static final int MAX_DISPID = MyRegFreeCOMSrvEventsSink.DISPID_NAME_PROPERTY_CHANGED;
+
+	/**
+	 * 配信方法
+	 */
+	public abstract static class Policy {
+
+		private static final Policy ALL = new Policy() {
+
+			@Override
+			Gate newGate(MyRegFreeCOMSrvSubscription subscription, int dispId, long now) {
+				return subscription.new Gate(dispId) {
+
+					@Override
+					void offer(Object evt) {
+						deliver(evt);
+					}
+				};
+			}
+		};
+
+		Policy() {
+			super();
+		}
+
+		/**
+		 * すべてのイベントを配信する
+		 * @return 配信方法
+		 */
+		public static Policy all() {
+			return ALL;
+		}
+
+		/**
+		 * N件に1件だけ配信する.
+		 * (最初のイベントは配信される。)
+		 * @param n 間隔
+		 * @return 配信方法
+		 */
+		public static Policy sample(int n) {
+			if (n <= 0) {
+				throw new IllegalArgumentException("n=" + n);
+			}
+			return new Policy() {
+
+				@Override
+				Gate newGate(MyRegFreeCOMSrvSubscription subscription, int dispId, long now) {
+					AtomicLong seq = new AtomicLong();
+					return subscription.new Gate(dispId) {
+
+						@Override
+						void offer(Object evt) {
+							if (seq.getAndIncrement() % n == 0) {
+								deliver(evt);
+							} else {
+								dropped.increment();
+							}
+						}
+					};
+				}
+			};
+		}
+
+		/**
+		 * トークンバケットで流量を制限する.
+		 * 毎秒permitsPerSecond件まで、瞬間的にはburst件まで配信する。
+		 * (状態は1つのlongで表し、CASで更新する。)
+		 * @param permitsPerSecond 1秒あたりの配信数
+		 * @param burst バケットの大きさ
+		 * @return 配信方法
+		 */
+		public static Policy rateLimit(double permitsPerSecond, int burst) {
+			if (!(permitsPerSecond > 0) || burst <= 0) {
+				throw new IllegalArgumentException("permitsPerSecond=" + permitsPerSecond + ", burst=" + burst);
+			}
+			long interval = Math.max(1, (long) (1_000_000_000d / permitsPerSecond));
+			long tolerance = interval * (burst - 1);
+			return new Policy() {
+
+				@Override
+				Gate newGate(MyRegFreeCOMSrvSubscription subscription, int dispId, long now) {
+					// 次のトークンが補充される理論上の時刻.
+					// これが現在時刻よりtoleranceを超えて先にあれば、バケットは空である。
+					AtomicLong theoreticalArrival = new AtomicLong(now);
+					return subscription.new Gate(dispId) {
+
+						@Override
+						void offer(Object evt) {
+							long now = subscription.clock.getAsLong();
+							for (;;) {
+								long tat = theoreticalArrival.get();
+								long base = tat - now < 0 ? now : tat;
+								if (base - now > tolerance) {
+									dropped.increment();
+									return;
+								}
+								if (theoreticalArrival.compareAndSet(tat, base + interval)) {
+									deliver(evt);
+									return;
+								}
+							}
+						}
+					};
+				}
+			};
+		}
+
+		/**
+		 * 最新のイベントだけを、指定したExecutorで配信する.
+		 * 配信待ちの間に次のイベントが発生した場合は、古いイベントを破棄して置き換える。
+		 * COMのコールバックスレッドではイベントの複製を置くだけになる。
+		 * (非同期に配信されるので、NamePropertyChangingイベントのキャンセルはCOMに返されない。)
+		 * Executorが受け付けなかった場合(停止後など)は、そのイベントは破棄される。
+		 * @param executor 配信に使うExecutor
+		 * @return 配信方法
+		 */
+		public static Policy latestOnly(Executor executor) {
+			Objects.requireNonNull(executor);
+			return new Policy() {
+
+				@Override
+				Gate newGate(MyRegFreeCOMSrvSubscription subscription, int dispId, long now) {
+					AtomicReference<Object> latest = new AtomicReference<>();
+					return subscription.new Gate(dispId) {
+
+						@Override
+						void offer(Object evt) {
+							Object copy = copy(evt);
+							if (latest.getAndSet(copy) != null) {
+								dropped.increment();
+								return;
+							}
+							try {
+								executor.execute(() -> {
+									Object pending = latest.getAndSet(null);
+									if (pending != null) {
+										deliver(pending);
+									}
+								});
+
+							} catch (RejectedExecutionException ex) {
+								// 例外をCOMのコールバックに返さずに破棄し、次のイベントで再びスケジュールできるようにする。
+								// (すでに新しいイベントに置き換えられていれば、それも配信されないので破棄する)
+								if (latest.compareAndSet(copy, null) || latest.getAndSet(null) != null) {
+									dropped.increment();
+								}
+							}
+						}
+					};
+				}
+			};
+		}
+
+		abstract Gate newGate(MyRegFreeCOMSrvSubscription subscription, int dispId, long now);
+	}
+
+	/**
+	 * 登録時のオプション
+	 */
+	public static final class Options {
+
+		private final Policy[] policies = new Policy[MAX_DISPID + 1];
+
+		private LongSupplier clock = System::nanoTime;
+
+		/**
+		 * DISPIDごとの配信方法を設定する
+		 * @param dispId DISPID
+		 * @param policy 配信方法
+		 * @return このオブジェクト
+		 */
+		public Options set(int dispId, Policy policy) {
+			if (dispId < 1 || dispId > MAX_DISPID) {
+				throw new IllegalArgumentException("dispId=" + dispId);
+			}
+			policies[dispId] = Objects.requireNonNull(policy);
+			return this;
+		}
+
+		/**
+		 * 流量制限に使う時計を設定する (試験用)
+		 * @param nanoClock ナノ秒単位の単調増加する時計
+		 * @return このオブジェクト
+		 */
+		public Options setClock(LongSupplier nanoClock) {
+			this.clock = Objects.requireNonNull(nanoClock);
+			return this;
+		}
+	}
+
+	/**
+	 * DISPIDごとの配信方法の状態と、配信数・破棄数
+	 */
+	abstract class Gate {
+
+		final int dispId;
+
+		final LongAdder delivered = new LongAdder();
+
+		final LongAdder dropped = new LongAdder();
+
+		Gate(int dispId) {
+			this.dispId = dispId;
+		}
+
+		/**
+		 * イベントを配信するか判定する
+		 * @param evt イベント
+		 */
+		abstract void offer(Object evt);
+
+		final void deliver(Object evt) {
+			if (cancelled) {
+				// 削除後に実行された非同期の配信
+				dropped.increment();
+				return;
+			}
+			delivered.increment();
+			if (dispId == MyRegFreeCOMSrvEventsSink.DISPID_NAME_PROPERTY_CHANGING) {
+				listener.namePropertyChanging((NamePropertyChangingEvent) evt);
+			} else {
+				listener.namePropertyChanged((NamePropertyChangedEvent) evt);
+			}
+		}
+
+		final Object copy(Object evt) {
+			if (evt instanceof NamePropertyChangingEvent) {
+				NamePropertyChangingEvent src = (NamePropertyChangingEvent) evt;
+				NamePropertyChangingEvent dest = new NamePropertyChangingEvent();
+				dest.setName(src.getName());
+				dest.setCancel(src.isCancel());
+				return dest;
+			}
+			NamePropertyChangedEvent src = (NamePropertyChangedEvent) evt;
+			NamePropertyChangedEvent dest = new NamePropertyChangedEvent();
+			dest.setName(src.getName());
+			return dest;
+		}
+	}
+
+	private final MyRegFreeCOMSrvEventListener listener;
+
+	private final LongSupplier clock;
+
+	private final Gate[] gates = new Gate[MAX_DISPID + 1];
+
+	/**
+	 * リスナの削除によって取り消されたか
+	 */
+	private volatile boolean cancelled;
+
+	MyRegFreeCOMSrvSubscription(MyRegFreeCOMSrvEventListener listener, Options options) {
+		this.listener = Objects.requireNonNull(listener);
+		this.clock = options.clock;
+		long now = clock.getAsLong();
+		for (int dispId = 1; dispId <= MAX_DISPID; dispId++) {
+			Policy policy = options.policies[dispId] != null ? options.policies[dispId] : Policy.ALL;
+			gates[dispId] = policy.newGate(this, dispId, now);
+		}
+	}
+
+	public MyRegFreeCOMSrvEventListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * リスナの削除によって取り消されたか
+	 * @return 取り消されていればtrue
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * 登録を取り消す.
+	 * 以降は、配信待ちのイベントもリスナに配信せず破棄数として数える。
+	 */
+	void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * リスナに配信したイベント数
+	 * @param dispId DISPID
+	 * @return 件数
+	 */
+	public long getDelivered(int dispId) {
+		return gates[dispId].delivered.sum();
+	}
+
+	/**
+	 * 配信方法によって破棄したイベント数
+	 * @param dispId DISPID
+	 * @return 件数
+	 */
+	public long getDropped(int dispId) {
+		return gates[dispId].dropped.sum();
+	}
+
+	void namePropertyChanging(NamePropertyChangingEvent evt) {
+		gates[MyRegFreeCOMSrvEventsSink.DISPID_NAME_PROPERTY_CHANGING].offer(evt);
+	}
+
+	void namePropertyChanged(NamePropertyChangedEvent evt) {
+		gates[MyRegFreeCOMSrvEventsSink.DISPID_NAME_PROPERTY_CHANGED].offer(evt);
+	}
+}
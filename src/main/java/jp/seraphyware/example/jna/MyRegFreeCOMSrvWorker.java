@@ -0,0 +1,247 @@
+package jp.seraphyware.example.jna;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.jna.platform.win32.Ole32;
+
+import jp.seraphyware.example.jna.AsyncLog.Level;
+import jp.seraphyware.example.jna.AsyncLog.Template;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.MyRegFreeCOMSrvEventListener;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangedEvent;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangingEvent;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrvProtocol.Frame;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrvProtocol.FrameReader;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrvProtocol.FrameWriter;
+
+/**
+ * 子プロセスとしてMyRegFreeCOMSrvをホストするワーカー.
+ *
+ * 標準入力から要求を受け取り、アパートメントスレッド上でCOMオブジェクトを操作して、
+ * 結果とイベントを標準出力に返す。(プロトコルはMyRegFreeCOMSrvProtocolを参照。)
+ * 標準出力はプロトコル専用とし、それ以外の出力は標準エラーに切り替える。
+ * COMオブジェクトがコネクションポイントへの接続を監視する場合は、
+ * アパートメントスレッド上で定期的に監視と再接続を行う。
+ *
+ * 引数にIMyRegFreeCOMSrvの実装クラス名を指定した場合は、COMの代わりに
+ * そのクラスを引数なしのコンストラクタで構築して使う。(COMのない環境での試験用。)
+ */
+public class MyRegFreeCOMSrvWorker implements MyRegFreeCOMSrvEventListener {
+
+	private static final Template WRITE_FAILED = AsyncLog.template("write to parent failed: {}");
+
+	/**
+	 * ログ.
+	 * 既定のインスタンスは構築時の標準出力に出力するので、mainで標準出力を切り替えたあとに取得する。
+	 */
+	private final AsyncLog log = AsyncLog.getDefault();
+
+	private final FrameReader reader;
+
+	private final FrameWriter writer;
+
+	/**
+	 * アパートメントスレッド (要求の処理と、接続の定期的な監視を行う)
+	 */
+	private final ScheduledExecutorService apartment;
+
+	/**
+	 * 親プロセスからの結果を待っているNamePropertyChangingイベント
+	 */
+	private final ConcurrentHashMap<Integer, CompletableFuture<Boolean>> pendingEvents = new ConcurrentHashMap<>();
+
+	private final AtomicInteger eventIdSeq = new AtomicInteger();
+
+	/**
+	 * 入力が閉じられ、以降はイベントの結果を受け取れないか
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * COMオブジェクト。アパートメントスレッドからのみアクセスする。
+	 */
+	private IMyRegFreeCOMSrv srv;
+
+	/**
+	 * コンストラクタ
+	 * @param is 要求を受け取るストリーム
+	 * @param os 結果とイベントを返すストリーム
+	 * @param threadFactory アパートメントスレッドを作成するファクトリ
+	 */
+	public MyRegFreeCOMSrvWorker(InputStream is, OutputStream os, ThreadFactory threadFactory) {
+		this.reader = new FrameReader(is);
+		this.writer = new FrameWriter(os);
+		this.apartment = Executors.newSingleThreadScheduledExecutor(threadFactory);
+	}
+
+	/**
+	 * アパートメントスレッド上でインスタンスを構築したあと、
+	 * 終了要求を受け取るか入力が閉じられるまで要求を処理する.
+	 * @param factory インスタンスの生成処理
+	 * @throws Exception
+	 */
+	public void run(Callable<? extends IMyRegFreeCOMSrv> factory) throws Exception {
+		try {
+			apartment.submit(() -> {
+				srv = factory.call();
+				srv.addListener(this);
+				MyRegFreeCOMSrvConnectionSupervisor supervisor = srv.getConnectionSupervisor();
+				if (supervisor != null) {
+					supervisor.schedule(apartment);
+				}
+				return null;
+			}).get();
+
+			Frame frame;
+			while ((frame = reader.read()) != null && frame.type != MyRegFreeCOMSrvProtocol.REQ_CLOSE) {
+				if (frame.type == MyRegFreeCOMSrvProtocol.EVENT_REPLY) {
+					CompletableFuture<Boolean> reply = pendingEvents.remove(frame.id);
+					if (reply != null) {
+						reply.complete(frame.flag);
+					}
+					continue;
+				}
+				Frame request = frame;
+				apartment.execute(() -> handle(request));
+			}
+
+		} finally {
+			// 親プロセスがいなくなった場合は、イベントの結果はキャンセルなしとする
+			// (以降に登録されるイベントは、closedを見て自身で結果を決める)
+			closed = true;
+			pendingEvents.values().forEach(reply -> reply.complete(false));
+			apartment.execute(() -> {
+				if (srv != null) {
+					srv.removeListener(this);
+					srv.close();
+					srv = null;
+				}
+			});
+			apartment.shutdown();
+			apartment.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			writer.close();
+		}
+	}
+
+	/**
+	 * アパートメントスレッド上で要求を処理して結果を返す
+	 * @param request 要求
+	 */
+	private void handle(Frame request) {
+		try {
+			String result = null;
+			try {
+				switch (request.type) {
+				case MyRegFreeCOMSrvProtocol.REQ_GET_NAME:
+					result = srv.getName();
+					break;
+
+				case MyRegFreeCOMSrvProtocol.REQ_SET_NAME:
+					srv.setName(request.text);
+					break;
+
+				case MyRegFreeCOMSrvProtocol.REQ_SHOW_HELLO:
+					srv.ShowHello();
+					break;
+
+				default:
+					throw new IllegalArgumentException("unsupported request: " + request);
+				}
+
+			} catch (RuntimeException ex) {
+				writer.write(MyRegFreeCOMSrvProtocol.RES_ERROR, request.id, ex.toString());
+				return;
+			}
+			try {
+				writer.write(MyRegFreeCOMSrvProtocol.RES_OK, request.id, result);
+
+			} catch (IllegalArgumentException ex) {
+				// 結果が最大長を超える場合は、この要求の失敗として返す
+				writer.write(MyRegFreeCOMSrvProtocol.RES_ERROR, request.id, ex.toString());
+			}
+
+		} catch (IOException ex) {
+			// 親プロセスへの出力が閉じられている場合は、入力側の終了で停止する
+			log.log(Level.WARN, WRITE_FAILED, ex);
+		}
+	}
+
+	@Override
+	public void namePropertyChanging(NamePropertyChangingEvent evt) {
+		int eventId = eventIdSeq.incrementAndGet();
+		CompletableFuture<Boolean> reply = new CompletableFuture<>();
+		pendingEvents.put(eventId, reply);
+		if (closed) {
+			// 入力の終了処理が済んだあとに登録した場合は、結果を返す相手がいない
+			pendingEvents.remove(eventId);
+			return;
+		}
+		try {
+			writer.write(MyRegFreeCOMSrvProtocol.EVENT_CHANGING, eventId, evt.getName(), evt.isCancel());
+
+		} catch (IOException | IllegalArgumentException ex) {
+			// 送信できなかったイベントは、キャンセルなしとする
+			pendingEvents.remove(eventId);
+			log.log(Level.WARN, WRITE_FAILED, ex);
+			return;
+		}
+		evt.setCancel(reply.join());
+	}
+
+	@Override
+	public void namePropertyChanged(NamePropertyChangedEvent evt) {
+		try {
+			writer.write(MyRegFreeCOMSrvProtocol.EVENT_CHANGED, 0, evt.getName());
+
+		} catch (IOException | IllegalArgumentException ex) {
+			log.log(Level.WARN, WRITE_FAILED, ex);
+		}
+	}
+
+	/**
+	 * エントリポイント.
+	 * @param args 省略時はCOMを使う。指定時はIMyRegFreeCOMSrvの実装クラス名。
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		// 標準出力はプロトコル専用とする
+		OutputStream os = new FileOutputStream(FileDescriptor.out);
+		System.setOut(new PrintStream(new FileOutputStream(FileDescriptor.err), true));
+
+		MyRegFreeCOMSrvWorker worker;
+		Callable<? extends IMyRegFreeCOMSrv> factory;
+		if (args.length > 0) {
+			Class<? extends IMyRegFreeCOMSrv> cls = Class.forName(args[0]).asSubclass(IMyRegFreeCOMSrv.class);
+			worker = new MyRegFreeCOMSrvWorker(System.in, os, Executors.defaultThreadFactory());
+			factory = () -> cls.newInstance();
+
+		} else {
+			Path nativeDir = MyRegFreeCOMSrvClient.initDLL();
+			String manifestFile = nativeDir.resolve(MyRegFreeCOMSrvClient.CLIENT_MANIFEST).toString();
+			worker = new MyRegFreeCOMSrvWorker(System.in, os, r -> new Thread(() -> {
+				Ole32.INSTANCE.CoInitializeEx(null, Ole32.COINIT_APARTMENTTHREADED);
+				try {
+					r.run();
+
+				} finally {
+					Ole32.INSTANCE.CoUninitialize();
+				}
+			}));
+			factory = () -> ActivationContextAPI.doActivate(manifestFile, () -> new MyRegFreeCOMSrv());
+		}
+		worker.run(factory);
+	}
+}
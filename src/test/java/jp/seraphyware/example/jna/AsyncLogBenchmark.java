@@ -0,0 +1,97 @@
+package jp.seraphyware.example.jna;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+import jp.seraphyware.example.jna.AsyncLog.Format;
+import jp.seraphyware.example.jna.AsyncLog.Level;
+import jp.seraphyware.example.jna.AsyncLog.Template;
+
+/**
+ * イベントごとの診断出力について、System.out.printlnとAsyncLogの
+ * 呼び出し側スレッドでの処理時間とメモリ割り当て量を比較するベンチマーク.
+ *
+ * printlnの出力先は、System.outと同様に行ごとにフラッシュするファイルとする。
+ * AsyncLogはリングバッファが溢れないように、一定数ごとに出力を待つ。(待ち時間は測定に含めない。)
+ *
+ * 引数: [イベント数]
+ */
+public class AsyncLogBenchmark {
+
+	private static final Template DISPID_MEMBER = AsyncLog.template("★dispIdMember={}");
+
+	/**
+	 * 出力を待つまでに投入するイベント数 (リングバッファの大きさの半分)
+	 */
+	private static final int BATCH = 4096;
+
+	private interface Task {
+
+		void run(int dispId);
+	}
+
+	public static void main(String[] args) throws IOException {
+		int events = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+		File printlnFile = File.createTempFile("println", ".log");
+		File textFile = File.createTempFile("asynclog", ".log");
+		File binFile = File.createTempFile("asynclog", ".bin");
+		try (PrintStream ps = new PrintStream(new FileOutputStream(printlnFile), true, "UTF-8");
+				AsyncLog disabled = new AsyncLog(Level.INFO, Format.TEXT, new FileOutputStream(textFile), 8192);
+				AsyncLog text = new AsyncLog(Level.DEBUG, Format.TEXT, new FileOutputStream(textFile), 8192);
+				AsyncLog binary = new AsyncLog(Level.DEBUG, Format.BINARY, new FileOutputStream(binFile), 8192)) {
+
+			Runnable[] flushes = { ps::flush, disabled::flush, text::flush, binary::flush };
+			Task[] tasks = {
+					dispId -> ps.println("★dispIdMember=" + dispId),
+					dispId -> disabled.log(Level.DEBUG, DISPID_MEMBER, dispId),
+					dispId -> text.log(Level.DEBUG, DISPID_MEMBER, dispId),
+					dispId -> binary.log(Level.DEBUG, DISPID_MEMBER, dispId),
+			};
+			String[] labels = { "println", "AsyncLog(disabled)", "AsyncLog(text)", "AsyncLog(binary)" };
+
+			// ウォームアップ
+			for (int idx = 0; idx < tasks.length; idx++) {
+				measure(tasks[idx], flushes[idx], events / 10);
+			}
+			for (int idx = 0; idx < tasks.length; idx++) {
+				long[] result = measure(tasks[idx], flushes[idx], events);
+				System.out.printf("%-20s events=%8d time=%8.1fns/event alloc=%6.1fbytes/event%n",
+						labels[idx], events, (double) result[0] / events, (double) result[1] / events);
+			}
+			System.out.printf("dropped: text=%d, binary=%d%n", text.getDroppedCount(), binary.getDroppedCount());
+
+		} finally {
+			printlnFile.delete();
+			textFile.delete();
+			binFile.delete();
+		}
+	}
+
+	/**
+	 * 呼び出し側スレッドでの処理時間とメモリ割り当て量を測定する
+	 * @return 処理時間(ナノ秒), 割り当て量(バイト)
+	 */
+	private static long[] measure(Task task, Runnable flush, int events) {
+		com.sun.management.ThreadMXBean mxbean =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+		long elapsed = 0;
+		long alloc = 0;
+		for (int done = 0; done < events; done += BATCH) {
+			int batch = Math.min(BATCH, events - done);
+			long startAlloc = mxbean.getThreadAllocatedBytes(tid);
+			long start = System.nanoTime();
+			for (int idx = 0; idx < batch; idx++) {
+				task.run(1 + (idx & 1));
+			}
+			elapsed += System.nanoTime() - start;
+			alloc += mxbean.getThreadAllocatedBytes(tid) - startAlloc;
+			flush.run();
+		}
+		return new long[] { elapsed, alloc };
+	}
+}
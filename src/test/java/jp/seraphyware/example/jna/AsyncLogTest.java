@@ -0,0 +1,165 @@
+package jp.seraphyware.example.jna;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import jp.seraphyware.example.jna.AsyncLog.Format;
+import jp.seraphyware.example.jna.AsyncLog.Level;
+import jp.seraphyware.example.jna.AsyncLog.Template;
+
+/**
+ * AsyncLogのテスト
+ */
+public class AsyncLogTest {
+
+	private static final Template NATIVE_DIR = AsyncLog.template("nativeDir={}");
+
+	private static final Template DISPID_MEMBER = AsyncLog.template("★dispIdMember={}");
+
+	private static final Template THREE_ARGS = AsyncLog.template("{}-{}-{}.");
+
+	@Test
+	public void testTextFormat() {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (AsyncLog log = new AsyncLog(Level.INFO, Format.TEXT, bos, 16)) {
+			assertFalse(log.isEnabled(Level.DEBUG));
+			assertTrue(log.isEnabled(Level.INFO));
+
+			log.log(Level.DEBUG, DISPID_MEMBER, 1);
+			log.log(Level.INFO, NATIVE_DIR, "C:\\temp");
+			log.log(Level.WARN, DISPID_MEMBER, 2);
+			log.log(Level.ERROR, THREE_ARGS, "a", null, 3);
+		}
+		String[] lines = new String(bos.toByteArray(), StandardCharsets.UTF_8).split(System.lineSeparator());
+		assertEquals(3, lines.length);
+		assertTrue(lines[0], lines[0].endsWith(" INFO  [main] nativeDir=C:\\temp"));
+		assertTrue(lines[1], lines[1].endsWith(" WARN  [main] ★dispIdMember=2"));
+		assertTrue(lines[2], lines[2].endsWith(" ERROR [main] a-null-3."));
+	}
+
+	@Test
+	public void testBinaryFormat() throws IOException {
+		ByteArrayOutputStream bin = new ByteArrayOutputStream();
+		ByteArrayOutputStream txt = new ByteArrayOutputStream();
+		try (AsyncLog binLog = new AsyncLog(Level.DEBUG, Format.BINARY, bin, 16);
+				AsyncLog txtLog = new AsyncLog(Level.DEBUG, Format.TEXT, txt, 16)) {
+			for (AsyncLog log : new AsyncLog[] { binLog, txtLog }) {
+				log.log(Level.DEBUG, DISPID_MEMBER, 1);
+				log.log(Level.DEBUG, DISPID_MEMBER, 2);
+				log.log(Level.INFO, THREE_ARGS, "a", null, "c");
+			}
+		}
+
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+		AsyncLog.decode(new ByteArrayInputStream(bin.toByteArray()),
+				new PrintStream(decoded, true, "UTF-8"));
+
+		String[] expected = new String(txt.toByteArray(), StandardCharsets.UTF_8).split(System.lineSeparator());
+		String[] actual = new String(decoded.toByteArray(), StandardCharsets.UTF_8).split(System.lineSeparator());
+		assertEquals(3, actual.length);
+		for (int idx = 0; idx < expected.length; idx++) {
+			// タイムスタンプ以外は一致する
+			assertEquals(expected[idx].substring(24), actual[idx].substring(24));
+		}
+	}
+
+	@Test
+	public void testDropWhenFull() throws InterruptedException {
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		OutputStream out = new OutputStream() {
+
+			@Override
+			public void write(int b) {
+				bos.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				blocked.countDown();
+				try {
+					release.await();
+
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				bos.write(b, off, len);
+			}
+		};
+
+		try (AsyncLog log = new AsyncLog(Level.INFO, Format.TEXT, out, 4)) {
+			// 出力スレッドを止めておく
+			log.log(Level.INFO, DISPID_MEMBER, 0);
+			blocked.await();
+
+			for (int idx = 1; idx <= 10; idx++) {
+				log.log(Level.INFO, DISPID_MEMBER, idx);
+			}
+			assertEquals(6, log.getDroppedCount());
+			release.countDown();
+		}
+		String[] lines = new String(bos.toByteArray(), StandardCharsets.UTF_8).split(System.lineSeparator());
+		assertEquals(5, lines.length);
+		assertTrue(lines[4], lines[4].endsWith("★dispIdMember=4"));
+	}
+
+	@Test(timeout = 10_000)
+	public void testBrokenOutput() {
+		OutputStream out = new OutputStream() {
+
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("broken pipe");
+			}
+		};
+		char[] big = new char[64 * 1024]; // 出力用のバッファを超えるので、すぐに書き込みが失敗する
+		Arrays.fill(big, 'x');
+		try (AsyncLog log = new AsyncLog(Level.INFO, Format.TEXT, out, 16)) {
+			log.log(Level.INFO, NATIVE_DIR, new String(big));
+			log.log(Level.INFO, NATIVE_DIR, "small");
+
+			// 書き込みに失敗しても待機は終わり、失敗は件数として数えられる
+			log.flush();
+			assertTrue(log.getWriteErrorCount() > 0);
+		}
+	}
+
+	@Test
+	public void testBinaryLongString() throws IOException, InterruptedException {
+		char[] big = new char[70_000]; // writeUTFの上限(65535バイト)を超える
+		Arrays.fill(big, 'あ');
+		ByteArrayOutputStream bin = new ByteArrayOutputStream();
+		try (AsyncLog log = new AsyncLog(Level.INFO, Format.BINARY, bin, 16)) {
+			// スレッド名は出力スレッドで取得されるが、呼び出し元のものになる
+			Thread thread = new Thread(() -> {
+				log.log(Level.INFO, NATIVE_DIR, new String(big));
+				log.log(Level.INFO, NATIVE_DIR, "after");
+			}, "caller");
+			thread.start();
+			thread.join();
+			log.flush();
+			assertEquals(0, log.getWriteErrorCount());
+		}
+
+		// 長い文字列は切り詰められ、以降のレコードも読める
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+		AsyncLog.decode(new ByteArrayInputStream(bin.toByteArray()),
+				new PrintStream(decoded, true, "UTF-8"));
+		String[] lines = new String(decoded.toByteArray(), StandardCharsets.UTF_8).split(System.lineSeparator());
+		assertEquals(2, lines.length);
+		assertTrue(lines[0].endsWith("あああ"));
+		assertTrue(lines[0].length() < big.length);
+		assertTrue(lines[1], lines[1].endsWith(" INFO  [caller] nativeDir=after"));
+	}
+}
@@ -0,0 +1,136 @@
+package jp.seraphyware.example.jna;
+
+import java.util.concurrent.locks.LockSupport;
+
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.MyRegFreeCOMSrvEventListener;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.MyRegFreeCOMSrvEventsSink;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangedEvent;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangingEvent;
+
+/**
+ * COMを使わずにMyRegFreeCOMSrvと同じ振る舞いをする、プロセス内のスタンドイン.
+ *
+ * STAと同様に、生成したスレッド以外からの呼び出しはエラーとする。
+ * 1回の呼び出しごとに指定時間の処理時間(CPUを使うビジーループ、または待機)を模擬する。
+ */
+public class InProcessMyRegFreeCOMSrv implements IMyRegFreeCOMSrv {
+
+	/**
+	 * 呼び出しごとの処理時間の模擬方法
+	 */
+	public enum Work {
+
+		/**
+		 * CPUを使うビジーループ
+		 */
+		SPIN,
+
+		/**
+		 * CPUを使わない待機(COMサーバ側のI/O待ちなど)
+		 */
+		PARK
+	}
+
+	private final Thread owner = Thread.currentThread();
+
+	private final MyRegFreeCOMSrvEventsSink eventSink = new MyRegFreeCOMSrvEventsSink();
+
+	private final Work work;
+
+	private final long workNanos;
+
+	private String name = "";
+
+	/**
+	 * 処理時間なしのスタンドインを構築する
+	 */
+	public InProcessMyRegFreeCOMSrv() {
+		this(Work.SPIN, 0);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param work 処理時間の模擬方法
+	 * @param workNanos 呼び出しごとの処理時間
+	 */
+	public InProcessMyRegFreeCOMSrv(Work work, long workNanos) {
+		this.work = work;
+		this.workNanos = workNanos;
+	}
+
+	/**
+	 * 生成したスレッド以外からの呼び出しであればエラーとする(RPC_E_WRONG_THREAD相当)
+	 */
+	private void checkApartment() {
+		if (Thread.currentThread() != owner) {
+			throw new IllegalStateException("RPC_E_WRONG_THREAD: owner=" + owner.getName()
+					+ ", current=" + Thread.currentThread().getName());
+		}
+	}
+
+	private void doWork() {
+		if (workNanos <= 0) {
+			return;
+		}
+		if (work == Work.PARK) {
+			LockSupport.parkNanos(workNanos);
+			return;
+		}
+		long start = System.nanoTime();
+		while (System.nanoTime() - start < workNanos) {
+			// ビジーループ
+		}
+	}
+
+	@Override
+	public String getName() {
+		checkApartment();
+		doWork();
+		return name;
+	}
+
+	@Override
+	public void setName(String name) {
+		checkApartment();
+		doWork();
+
+		NamePropertyChangingEvent changing = new NamePropertyChangingEvent();
+		changing.setName(name);
+		eventSink.fireNamePropertyChanging(changing);
+		if (changing.isCancel()) {
+			return;
+		}
+		this.name = name;
+
+		NamePropertyChangedEvent changed = new NamePropertyChangedEvent();
+		changed.setName(name);
+		eventSink.fireNamePropertyChanged(changed);
+	}
+
+	@Override
+	public void ShowHello() {
+		checkApartment();
+		doWork();
+	}
+
+	@Override
+	public void addListener(MyRegFreeCOMSrvEventListener l) {
+		eventSink.addListener(l);
+	}
+
+	@Override
+	public MyRegFreeCOMSrvSubscription addListener(MyRegFreeCOMSrvEventListener l,
+			MyRegFreeCOMSrvSubscription.Options options) {
+		return eventSink.addListener(l, options);
+	}
+
+	@Override
+	public void removeListener(MyRegFreeCOMSrvEventListener l) {
+		eventSink.removeListener(l);
+	}
+
+	@Override
+	public void close() {
+		checkApartment();
+	}
+}
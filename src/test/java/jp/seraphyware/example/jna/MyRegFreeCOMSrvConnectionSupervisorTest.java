@@ -0,0 +1,333 @@
+package jp.seraphyware.example.jna;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.sun.jna.platform.win32.COM.IDispatchCallback;
+
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.MyRegFreeCOMSrvEventsSink;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangedEvent;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrvConnectionSupervisor.Policy;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrvConnectionSupervisor.State;
+
+/**
+ * コネクションポイントの監視と再接続のテスト.
+ * COMの代わりに、失敗を注入できるバックエンドと時計を使う。
+ */
+public class MyRegFreeCOMSrvConnectionSupervisorTest {
+
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * 接続中のシンクにだけイベントを通知する、失敗を注入できるバックエンド
+	 */
+	private static class FaultyBackend implements MyRegFreeCOMSrvConnectionBackend {
+
+		private MyRegFreeCOMSrvEventsSink connected;
+
+		/**
+		 * 失敗させるAdviseの回数
+		 */
+		private int failAdvise;
+
+		private boolean alive = true;
+
+		private boolean failUnadvise;
+
+		private int adviseCount;
+
+		private int unadviseCount;
+
+		@Override
+		public void advise(IDispatchCallback sink) {
+			adviseCount++;
+			if (failAdvise > 0) {
+				failAdvise--;
+				throw new IllegalStateException("CONNECT_E_CANNOTCONNECT");
+			}
+			if (connected != null) {
+				throw new IllegalStateException("already advised");
+			}
+			connected = (MyRegFreeCOMSrvEventsSink) sink;
+			alive = true;
+		}
+
+		@Override
+		public void unadvise() {
+			unadviseCount++;
+			connected = null;
+			if (failUnadvise) {
+				throw new IllegalStateException("CONNECT_E_NOCONNECTION");
+			}
+		}
+
+		@Override
+		public boolean probe() {
+			return alive;
+		}
+
+		/**
+		 * サーバ側から接続が切られたことを模擬する
+		 */
+		void drop() {
+			alive = false;
+			failUnadvise = true;
+			connected = null;
+		}
+
+		/**
+		 * 接続していればイベントを通知する
+		 * @return 通知されたか
+		 */
+		boolean fireChanged(String name) {
+			if (connected == null) {
+				return false;
+			}
+			NamePropertyChangedEvent evt = new NamePropertyChangedEvent();
+			evt.setName(name);
+			connected.fireNamePropertyChanged(evt);
+			return true;
+		}
+	}
+
+	private static Policy policy() {
+		return new Policy()
+				.setProbeInterval(1, TimeUnit.SECONDS)
+				.setInitialBackoff(100, TimeUnit.MILLISECONDS)
+				.setMaxBackoff(500, TimeUnit.MILLISECONDS)
+				.setMultiplier(2);
+	}
+
+	@Test
+	public void testReconnectKeepsListeners() {
+		AtomicLong clock = new AtomicLong(-1_000 * MS); // nanoTimeは負の値もとりうる
+		FaultyBackend backend = new FaultyBackend();
+		MyRegFreeCOMSrvEventsSink sink = new MyRegFreeCOMSrvEventsSink();
+		RecordingListener listener = new RecordingListener();
+		sink.addListener(listener);
+
+		MyRegFreeCOMSrvConnectionSupervisor supervisor =
+				new MyRegFreeCOMSrvConnectionSupervisor(backend, sink, policy(), clock::get);
+		supervisor.connect();
+		assertEquals(State.CONNECTED, supervisor.getState());
+		assertTrue(backend.fireChanged("a"));
+
+		// 確認間隔までは何もしない
+		backend.drop();
+		clock.addAndGet(999 * MS);
+		assertEquals(State.CONNECTED, supervisor.poll());
+		assertFalse(backend.fireChanged("lost"));
+
+		// 確認で切断を検出し、Unadviseの失敗は無視して次のpollで再接続する
+		clock.addAndGet(1 * MS);
+		assertEquals(State.RECONNECTING, supervisor.poll());
+		assertEquals(1, backend.unadviseCount);
+		clock.addAndGet(5 * MS);
+		assertEquals(State.CONNECTED, supervisor.poll());
+		assertEquals(1, supervisor.getReconnectCount());
+		assertEquals(5 * MS, supervisor.getLastRecoveryNanos());
+
+		// 同じシンクが再接続されるので、リスナを登録し直す必要はない
+		assertTrue(backend.fireChanged("b"));
+		assertEquals("[changed:a, changed:b]", listener.events.toString());
+	}
+
+	@Test
+	public void testExponentialBackoff() {
+		AtomicLong clock = new AtomicLong();
+		FaultyBackend backend = new FaultyBackend();
+		MyRegFreeCOMSrvConnectionSupervisor supervisor = new MyRegFreeCOMSrvConnectionSupervisor(
+				backend, new MyRegFreeCOMSrvEventsSink(), policy(), clock::get);
+		supervisor.connect();
+
+		backend.drop();
+		backend.failAdvise = 5;
+		supervisor.connectionLost();
+		assertEquals(State.RECONNECTING, supervisor.getState());
+
+		// 即時の再試行のあと、100, 200, 400, 500(上限), 500ms の間隔で再試行する
+		long[] waits = { 0, 100, 200, 400, 500, 500 };
+		long elapsed = 0;
+		for (int idx = 0; idx < waits.length; idx++) {
+			if (waits[idx] > 0) {
+				clock.addAndGet((waits[idx] - 1) * MS);
+				supervisor.poll();
+				assertEquals("early retry at " + idx, idx, backend.adviseCount - 1);
+				clock.addAndGet(1 * MS);
+			}
+			elapsed += waits[idx];
+			supervisor.poll();
+			assertEquals(idx + 1, backend.adviseCount - 1);
+		}
+		assertEquals(State.CONNECTED, supervisor.getState());
+		assertEquals(5, supervisor.getFailedAttempts());
+		assertEquals(elapsed * MS, supervisor.getLastRecoveryNanos());
+		assertEquals(elapsed * MS, supervisor.getTotalOutageNanos());
+
+		// 次の切断では、間隔は初期値からやり直す
+		backend.drop();
+		backend.failAdvise = 1;
+		supervisor.connectionLost();
+		supervisor.poll();
+		clock.addAndGet(100 * MS);
+		assertEquals(State.CONNECTED, supervisor.poll());
+		assertEquals(2, supervisor.getReconnectCount());
+		assertEquals((elapsed + 100) * MS, supervisor.getTotalOutageNanos());
+	}
+
+	@Test
+	public void testInitialConnectFailure() {
+		AtomicLong clock = new AtomicLong();
+		FaultyBackend backend = new FaultyBackend();
+		backend.failAdvise = 1;
+		MyRegFreeCOMSrvConnectionSupervisor supervisor = new MyRegFreeCOMSrvConnectionSupervisor(
+				backend, new MyRegFreeCOMSrvEventsSink(), policy(), clock::get);
+		try {
+			supervisor.connect();
+			fail();
+
+		} catch (IllegalStateException ex) {
+			assertEquals("CONNECT_E_CANNOTCONNECT", ex.getMessage());
+		}
+		assertEquals(State.RECONNECTING, supervisor.getState());
+
+		// 初回の失敗は1回目の失敗として扱われる
+		clock.addAndGet(99 * MS);
+		assertEquals(State.RECONNECTING, supervisor.poll());
+		clock.addAndGet(1 * MS);
+		assertEquals(State.CONNECTED, supervisor.poll());
+		assertEquals(1, supervisor.getFailedAttempts());
+		assertEquals(100 * MS, supervisor.getLastRecoveryNanos());
+	}
+
+	@Test
+	public void testRecoveryHandler() {
+		AtomicLong clock = new AtomicLong();
+		FaultyBackend backend = new FaultyBackend();
+		MyRegFreeCOMSrvConnectionSupervisor supervisor = new MyRegFreeCOMSrvConnectionSupervisor(
+				backend, new MyRegFreeCOMSrvEventsSink(), policy(), clock::get);
+		List<Long> outages = new CopyOnWriteArrayList<>();
+		supervisor.setRecoveryHandler(outageNanos -> {
+			outages.add(outageNanos);
+			if (outages.size() == 2) {
+				throw new IllegalStateException("RPC_E_DISCONNECTED");
+			}
+			return 3;
+		});
+		supervisor.connect();
+
+		backend.drop();
+		supervisor.connectionLost();
+		clock.addAndGet(7 * MS);
+		supervisor.poll();
+		assertEquals(3, supervisor.getMissedEvents());
+
+		// ハンドラが失敗しても接続は回復したものとして監視を続ける
+		backend.drop();
+		supervisor.connectionLost();
+		assertEquals(State.CONNECTED, supervisor.poll());
+		assertEquals(3, supervisor.getMissedEvents());
+		assertEquals(2, supervisor.getReconnectCount());
+		assertEquals("[7000000, 0]", outages.toString());
+	}
+
+	@Test
+	public void testDisconnectedDuringRecovery() {
+		AtomicLong clock = new AtomicLong();
+		FaultyBackend backend = new FaultyBackend();
+		MyRegFreeCOMSrvConnectionSupervisor supervisor = new MyRegFreeCOMSrvConnectionSupervisor(
+				backend, new MyRegFreeCOMSrvEventsSink(), policy(), clock::get);
+		List<Long> outages = new CopyOnWriteArrayList<>();
+		supervisor.setRecoveryHandler(outageNanos -> {
+			outages.add(outageNanos);
+			if (outages.size() == 1) {
+				// 状態の確認がまた切断で失敗した場合 (MyRegFreeCOMSrv.getNameと同様に通知してから送出する)
+				backend.drop();
+				RuntimeException ex = new IllegalStateException(
+						"The object invoked has disconnected from its clients.(HRESULT: 80010108)");
+				supervisor.callFailed(ex);
+				throw ex;
+			}
+			return 1;
+		});
+		supervisor.connect();
+
+		backend.drop();
+		supervisor.connectionLost();
+		clock.addAndGet(7 * MS);
+
+		// ハンドラの中で切断されたので、回復したものとして数えない
+		assertEquals(State.RECONNECTING, supervisor.poll());
+		assertEquals(0, supervisor.getReconnectCount());
+		assertEquals(0, supervisor.getLastRecoveryNanos());
+		assertEquals(0, supervisor.getTotalOutageNanos());
+		assertEquals(0, supervisor.getMissedEvents());
+		assertEquals(1, supervisor.getFailedAttempts());
+		assertEquals(2, backend.unadviseCount);
+
+		// 再試行の失敗として間隔を空け、切断は最初の検出から続いているものとする
+		clock.addAndGet(99 * MS);
+		assertEquals(State.RECONNECTING, supervisor.poll());
+		clock.addAndGet(1 * MS);
+		assertEquals(State.CONNECTED, supervisor.poll());
+		assertEquals(1, supervisor.getReconnectCount());
+		assertEquals(107 * MS, supervisor.getLastRecoveryNanos());
+		assertEquals(107 * MS, supervisor.getTotalOutageNanos());
+		assertEquals(1, supervisor.getMissedEvents());
+		assertEquals("[7000000, 107000000]", outages.toString());
+	}
+
+	@Test
+	public void testClose() {
+		FaultyBackend backend = new FaultyBackend();
+		MyRegFreeCOMSrvConnectionSupervisor supervisor = new MyRegFreeCOMSrvConnectionSupervisor(
+				backend, new MyRegFreeCOMSrvEventsSink(), policy(), () -> 0L);
+		supervisor.connect();
+
+		// Unadviseの失敗は呼び出し元に通知される
+		backend.failUnadvise = true;
+		try {
+			supervisor.close();
+			fail();
+
+		} catch (IllegalStateException ex) {
+			assertEquals("CONNECT_E_NOCONNECTION", ex.getMessage());
+		}
+		assertEquals(State.CLOSED, supervisor.getState());
+
+		// 閉じたあとは再接続しない
+		assertEquals(State.CLOSED, supervisor.poll());
+		supervisor.connectionLost();
+		supervisor.close();
+		assertEquals(1, backend.adviseCount);
+		assertEquals(1, backend.unadviseCount);
+	}
+
+	@Test
+	public void testCallFailed() {
+		FaultyBackend backend = new FaultyBackend();
+		MyRegFreeCOMSrvConnectionSupervisor supervisor = new MyRegFreeCOMSrvConnectionSupervisor(
+				backend, new MyRegFreeCOMSrvEventsSink(), policy(), () -> 0L);
+		supervisor.connect();
+
+		// 切断以外の失敗では再接続しない (メッセージの形式はCOMUtils.checkRCによる)
+		supervisor.callFailed(new IllegalStateException("Unspecified error(HRESULT: 80004005)"));
+		supervisor.callFailed(new IllegalStateException((String) null));
+		assertEquals(State.CONNECTED, supervisor.getState());
+
+		supervisor.callFailed(new IllegalStateException(
+				"The object invoked has disconnected from its clients.(HRESULT: 80010108)"));
+		assertEquals(State.RECONNECTING, supervisor.getState());
+		assertEquals(State.CONNECTED, supervisor.poll());
+
+		assertTrue(MyRegFreeCOMSrvConnectionSupervisor.isDisconnected(0x800706BA)); // RPC_S_SERVER_UNAVAILABLE
+		assertTrue(MyRegFreeCOMSrvConnectionSupervisor.isDisconnected(0x80010007)); // RPC_E_SERVER_DIED
+		assertFalse(MyRegFreeCOMSrvConnectionSupervisor.isDisconnected(0x80020009)); // DISP_E_EXCEPTION
+	}
+}
@@ -0,0 +1,90 @@
+package jp.seraphyware.example.jna;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.MyRegFreeCOMSrvEventsSink;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangedEvent;
+
+/**
+ * 再接続時の名前の再同期のテスト.
+ * COMの代わりに、現在の名前を直接変更して切断中の変更を模擬する。
+ */
+public class MyRegFreeCOMSrvNameResyncTest {
+
+	private final AtomicReference<String> name = new AtomicReference<>("a");
+
+	private final MyRegFreeCOMSrvEventsSink sink = new MyRegFreeCOMSrvEventsSink();
+
+	private final MyRegFreeCOMSrvNameResync resync = new MyRegFreeCOMSrvNameResync(name::get, sink);
+
+	private final RecordingListener listener = new RecordingListener();
+
+	private final List<String> events = listener.events;
+
+	public MyRegFreeCOMSrvNameResyncTest() {
+		sink.addListener(resync);
+		sink.addListener(listener);
+	}
+
+	/**
+	 * 接続中に変更されたことを模擬する
+	 */
+	private void changed(String newName) {
+		name.set(newName);
+		NamePropertyChangedEvent evt = new NamePropertyChangedEvent();
+		evt.setName(newName);
+		sink.fireNamePropertyChanged(evt);
+	}
+
+	@Test
+	public void testMissedChange() {
+		resync.reset();
+		assertEquals(0, resync.recovered(0));
+
+		// 切断中に変更された
+		name.set("b");
+		assertEquals(1, resync.recovered(0));
+		assertEquals("[changed:b]", events.toString());
+		assertEquals("b", resync.getLastKnownName());
+
+		// 同じ変更を二重に補わない
+		assertEquals(0, resync.recovered(0));
+		assertEquals(1, events.size());
+	}
+
+	@Test
+	public void testObservedChange() {
+		resync.reset();
+		changed("c");
+		assertEquals(0, resync.recovered(0));
+		assertEquals("[changed:c]", events.toString());
+	}
+
+	@Test
+	public void testNullName() {
+		resync.reset();
+		name.set(null);
+		assertEquals(1, resync.recovered(0));
+		assertEquals("[changed:null]", events.toString());
+		assertEquals(0, resync.recovered(0));
+
+		name.set("d");
+		assertEquals(1, resync.recovered(0));
+		assertEquals("[changed:null, changed:d]", events.toString());
+	}
+
+	@Test
+	public void testUnknownBaseline() {
+		// 最初の接続に失敗して基準がない場合は、再接続時の名前を基準とするだけ
+		name.set(null);
+		assertEquals(0, resync.recovered(0));
+		name.set("e");
+		assertEquals(1, resync.recovered(0));
+		assertEquals("[changed:e]", events.toString());
+	}
+}
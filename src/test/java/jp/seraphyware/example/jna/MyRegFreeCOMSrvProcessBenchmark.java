@@ -0,0 +1,59 @@
+package jp.seraphyware.example.jna;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 子プロセスのワーカーへの要求について、1件ずつ応答を待つ場合と
+ * パイプラインで投入する場合のスループットを比較するベンチマーク.
+ * 子プロセスではCOMの代わりにプロセス内のスタンドインを使う。
+ *
+ * 引数: [要求数] [パイプラインで同時に投入しておく要求数]
+ */
+public class MyRegFreeCOMSrvProcessBenchmark {
+
+	public static void main(String[] args) {
+		int ops = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+		int window = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+
+		try (MyRegFreeCOMSrvProcess srv = new MyRegFreeCOMSrvProcess(InProcessMyRegFreeCOMSrv.class.getName())) {
+			// ウォームアップ
+			sequential(srv, ops / 10);
+			pipelined(srv, ops / 10, window);
+
+			long start = System.nanoTime();
+			sequential(srv, ops);
+			report("sequential", ops, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			pipelined(srv, ops, window);
+			report("pipelined(window=" + window + ")", ops, System.nanoTime() - start);
+		}
+	}
+
+	private static void sequential(MyRegFreeCOMSrvProcess srv, int ops) {
+		for (int idx = 0; idx < ops; idx++) {
+			srv.getName();
+		}
+	}
+
+	private static void pipelined(MyRegFreeCOMSrvProcess srv, int ops, int window) {
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[window];
+		for (int idx = 0; idx < ops; idx++) {
+			int slot = idx % window;
+			if (futures[slot] != null) {
+				futures[slot].join();
+			}
+			futures[slot] = srv.getNameAsync();
+		}
+		for (CompletableFuture<?> future : futures) {
+			if (future != null) {
+				future.join();
+			}
+		}
+	}
+
+	private static void report(String label, int ops, long elapsed) {
+		System.out.printf("%-24s ops=%8d elapsed=%6dms throughput=%10.0f ops/s latency=%6.2fus%n",
+				label, ops, elapsed / 1_000_000, ops * 1e9 / elapsed, elapsed / 1e3 / ops);
+	}
+}
@@ -0,0 +1,175 @@
+package jp.seraphyware.example.jna;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import jp.seraphyware.example.jna.InProcessMyRegFreeCOMSrv.Work;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.MyRegFreeCOMSrvEventListener;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangedEvent;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangingEvent;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrvProcess.WorkerException;
+
+/**
+ * MyRegFreeCOMSrvProcessのテスト.
+ * 子プロセスではCOMの代わりにプロセス内のスタンドインを使う。
+ */
+public class MyRegFreeCOMSrvProcessTest {
+
+	private static final String STAND_IN = InProcessMyRegFreeCOMSrv.class.getName();
+
+	/**
+	 * 呼び出しごとに長時間待機するスタンドイン.
+	 * (ワーカーがクラス名から構築できるように、publicで引数なしのコンストラクタを持つ。)
+	 */
+	public static class SlowStandIn extends InProcessMyRegFreeCOMSrv {
+
+		public SlowStandIn() {
+			super(Work.PARK, TimeUnit.SECONDS.toNanos(60));
+		}
+	}
+
+	@Test
+	public void testPropertiesAndEvents() {
+		RecordingListener listener = new RecordingListener("cancel"::equals);
+		try (MyRegFreeCOMSrvProcess srv = new MyRegFreeCOMSrvProcess(STAND_IN)) {
+			srv.addListener(listener);
+			assertEquals("", srv.getName());
+
+			srv.setName("PiyoPiyo");
+			srv.setName("cancel");
+			srv.ShowHello();
+			assertEquals("PiyoPiyo", srv.getName());
+		}
+		assertEquals(3, listener.events.size());
+		assertEquals("changing:PiyoPiyo", listener.events.get(0));
+		assertEquals("changed:PiyoPiyo", listener.events.get(1));
+		assertEquals("changing:cancel", listener.events.get(2));
+	}
+
+	@Test
+	public void testPipelining() {
+		try (MyRegFreeCOMSrvProcess srv = new MyRegFreeCOMSrvProcess(STAND_IN)) {
+			List<CompletableFuture<String>> futures = new ArrayList<>();
+			for (int idx = 0; idx < 10_000; idx++) {
+				srv.setNameAsync("name" + idx);
+				futures.add(srv.getNameAsync());
+			}
+			// 要求は順に処理されるので、直前に設定した名前が返る
+			for (int idx = 0; idx < futures.size(); idx++) {
+				assertEquals("name" + idx, futures.get(idx).join());
+			}
+		}
+	}
+
+	@Test
+	public void testRestartAfterWorkerCrash() throws Exception {
+		RecordingListener listener = new RecordingListener("cancel"::equals);
+		try (MyRegFreeCOMSrvProcess srv = new MyRegFreeCOMSrvProcess(STAND_IN)) {
+			srv.addListener(listener);
+			srv.setName("before");
+
+			srv.getProcess().destroyForcibly().waitFor();
+			while (srv.isAlive()) {
+				Thread.sleep(10);
+			}
+
+			// 次の要求で再起動され、リスナも引き継がれる
+			srv.setName("after");
+			assertEquals("after", srv.getName());
+			assertEquals(1, srv.getRestartCount());
+		}
+		assertEquals("changed:after", listener.events.get(listener.events.size() - 1));
+	}
+
+	@Test
+	public void testRestartLimit() throws Exception {
+		try (MyRegFreeCOMSrvProcess srv = new MyRegFreeCOMSrvProcess(
+				MyRegFreeCOMSrvProcess.javaCommand(STAND_IN), 0)) {
+			srv.getProcess().destroyForcibly().waitFor();
+			while (srv.isAlive()) {
+				Thread.sleep(10);
+			}
+			try {
+				srv.getName();
+				fail();
+
+			} catch (WorkerException ex) {
+				// 再起動しない
+			}
+		}
+	}
+
+	@Test
+	public void testListenerFailureKeepsWorker() {
+		try (MyRegFreeCOMSrvProcess srv = new MyRegFreeCOMSrvProcess(STAND_IN)) {
+			srv.addListener(new MyRegFreeCOMSrvEventListener() {
+
+				@Override
+				public void namePropertyChanging(NamePropertyChangingEvent evt) {
+					throw new IllegalStateException("changing");
+				}
+
+				@Override
+				public void namePropertyChanged(NamePropertyChangedEvent evt) {
+					throw new IllegalStateException("changed");
+				}
+			});
+
+			// リスナの例外は記録されるだけで、子プロセスとの接続は維持される
+			srv.setName("PiyoPiyo");
+			assertEquals("PiyoPiyo", srv.getName());
+			assertTrue(srv.isAlive());
+			assertEquals(0, srv.getRestartCount());
+		}
+	}
+
+	@Test
+	public void testOversizedRequest() {
+		char[] big = new char[MyRegFreeCOMSrvProtocol.MAX_FRAME_LENGTH + 1];
+		Arrays.fill(big, 'x');
+		try (MyRegFreeCOMSrvProcess srv = new MyRegFreeCOMSrvProcess(STAND_IN)) {
+			CompletableFuture<String> before = srv.getNameAsync();
+			try {
+				srv.setNameAsync(new String(big)).join();
+				fail();
+
+			} catch (CompletionException ex) {
+				assertTrue(ex.getCause() instanceof IllegalArgumentException);
+			}
+
+			// 最大長を超える要求だけが失敗し、他の要求と子プロセスには影響しない
+			assertEquals("", before.join());
+			srv.setName("PiyoPiyo");
+			assertEquals("PiyoPiyo", srv.getName());
+			assertEquals(0, srv.getRestartCount());
+		}
+	}
+
+	@Test
+	public void testPendingRequestsFailWhenWorkerDies() throws Exception {
+		try (MyRegFreeCOMSrvProcess srv = new MyRegFreeCOMSrvProcess(
+				MyRegFreeCOMSrvProcess.javaCommand(SlowStandIn.class.getName()), 0)) {
+			// 子プロセスでの処理が終わらないうちに子プロセスを終了させる
+			CompletableFuture<String> future = srv.getNameAsync();
+			Thread.sleep(200);
+			assertFalse(future.isDone());
+			srv.getProcess().destroyForcibly().waitFor();
+
+			try {
+				future.join();
+				fail();
+
+			} catch (CompletionException ex) {
+				assertTrue(ex.getCause() instanceof WorkerException);
+			}
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package jp.seraphyware.example.jna;
+
+import java.util.concurrent.CompletableFuture;
+
+import jp.seraphyware.example.jna.InProcessMyRegFreeCOMSrv.Work;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrvShards.Routing;
+
+/**
+ * シャード数によるスループットの変化を測定するベンチマーク.
+ * COMの代わりにプロセス内のスタンドインを使う。
+ *
+ * 引数: [SPIN|PARK|ALL] [1回あたりの処理時間(マイクロ秒)] [CONSISTENT_HASH|LEAST_LOADED]
+ *
+ * SPINはCPUを使う処理を模擬するので、シャード数がCPUコア数を超えるとスループットは頭打ちになる。
+ * PARKはCOMサーバ側の待ちを模擬するだけなので、並列に待つことでシャード数に比例するのは自明であり、
+ * 振り分けのオーバーヘッドを見るための参考値である。
+ * 省略時(ALL)は、SPINとPARKの両方を続けて測定する。
+ */
+public class MyRegFreeCOMSrvShardsBenchmark {
+
+	private static final int[] SHARD_COUNTS = { 1, 2, 4, 8, 16 };
+
+	/**
+	 * 同時に投入しておく要求数
+	 */
+	private static final int WINDOW = 256;
+
+	public static void main(String[] args) {
+		String works = args.length > 0 ? args[0] : "ALL";
+		long workNanos = (args.length > 1 ? Long.parseLong(args[1]) : 200) * 1000L;
+		Routing routing = args.length > 2 ? Routing.valueOf(args[2]) : Routing.CONSISTENT_HASH;
+
+		if ("ALL".equals(works)) {
+			measure(Work.SPIN, workNanos, routing);
+			measure(Work.PARK, workNanos, routing);
+		} else {
+			measure(Work.valueOf(works), workNanos, routing);
+		}
+	}
+
+	private static void measure(Work work, long workNanos, Routing routing) {
+		System.out.println("work=" + work + ", workNanos=" + workNanos + ", routing=" + routing
+				+ ", cpus=" + Runtime.getRuntime().availableProcessors());
+
+		double base = 0;
+		for (int shardCount : SHARD_COUNTS) {
+			try (MyRegFreeCOMSrvShards shards = new MyRegFreeCOMSrvShards(shardCount, routing,
+					() -> new InProcessMyRegFreeCOMSrv(work, workNanos))) {
+				// ウォームアップ
+				run(shards, 2_000);
+
+				int ops = (int) Math.max(2_000, 2_000_000_000L * shardCount / Math.max(1, workNanos) / 10);
+				long start = System.nanoTime();
+				run(shards, ops);
+				long elapsed = System.nanoTime() - start;
+
+				double opsPerSec = ops * 1e9 / elapsed;
+				if (base == 0) {
+					base = opsPerSec;
+				}
+				System.out.printf("shards=%2d ops=%8d elapsed=%6dms throughput=%10.0f ops/s speedup=%5.2f%n",
+						shardCount, ops, elapsed / 1_000_000, opsPerSec, opsPerSec / base);
+			}
+		}
+	}
+
+	private static void run(MyRegFreeCOMSrvShards shards, int ops) {
+		CompletableFuture<?>[] window = new CompletableFuture<?>[WINDOW];
+		for (int idx = 0; idx < ops; idx++) {
+			int slot = idx % WINDOW;
+			if (window[slot] != null) {
+				window[slot].join();
+			}
+			window[slot] = shards.submit("key" + idx, IMyRegFreeCOMSrv::getName);
+		}
+		for (CompletableFuture<?> future : window) {
+			if (future != null) {
+				future.join();
+			}
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package jp.seraphyware.example.jna;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.sun.jna.platform.win32.COM.IDispatchCallback;
+
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.MyRegFreeCOMSrvEventsSink;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrvShards.Routing;
+
+/**
+ * MyRegFreeCOMSrvShardsのテスト.
+ * COMの代わりにプロセス内のスタンドインを使う。
+ */
+public class MyRegFreeCOMSrvShardsTest {
+
+	@Test
+	public void testConsistentHashRouting() {
+		try (MyRegFreeCOMSrvShards shards = new MyRegFreeCOMSrvShards(
+				4, Routing.CONSISTENT_HASH, InProcessMyRegFreeCOMSrv::new)) {
+			Set<Integer> used = new HashSet<>();
+			for (int idx = 0; idx < 1000; idx++) {
+				String key = "key" + idx;
+				int shardId = shards.shardOf(key);
+				assertEquals(shardId, shards.shardOf(key));
+				used.add(shardId);
+			}
+			assertEquals(4, used.size());
+
+			// 同じキーは同じインスタンスで処理される (スタンドインはアパートメント外の呼び出しをエラーにする)
+			String other = "bar";
+			for (int idx = 0; shards.shardOf(other) == shards.shardOf("foo"); idx++) {
+				other = "bar" + idx;
+			}
+			shards.setName("foo", "Foo");
+			shards.setName(other, "Bar");
+			assertEquals("Foo", shards.getName("foo"));
+			assertEquals("Bar", shards.getName(other));
+			shards.ShowHello("foo");
+		}
+	}
+
+	@Test
+	public void testMergedEventsWithShardId() {
+		RecordingListener listener = new RecordingListener("cancel"::equals);
+		List<String> events = listener.events;
+		try (MyRegFreeCOMSrvShards shards = new MyRegFreeCOMSrvShards(
+				3, Routing.CONSISTENT_HASH, InProcessMyRegFreeCOMSrv::new)) {
+			shards.addListener(listener);
+
+			int shardId = shards.shardOf("foo");
+			shards.setName("foo", "Foo");
+			shards.setName("foo", "cancel");
+			assertEquals("Foo", shards.getName("foo"));
+
+			assertEquals(3, events.size());
+			assertEquals(shardId + ":changing:Foo", events.get(0));
+			assertEquals(shardId + ":changed:Foo", events.get(1));
+			assertEquals(shardId + ":changing:cancel", events.get(2));
+		}
+	}
+
+	@Test
+	public void testLeastLoadedRouting() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		try (MyRegFreeCOMSrvShards shards = new MyRegFreeCOMSrvShards(4, Routing.LEAST_LOADED,
+				InProcessMyRegFreeCOMSrv::new)) {
+			try {
+				// シャード0～2を処理中のままにしておく (負荷が同じ間は探索開始位置の順に振り分けられる)
+				List<CompletableFuture<String>> blocked = new ArrayList<>();
+				for (int idx = 0; idx < 3; idx++) {
+					blocked.add(shards.submit(null, srv -> {
+						try {
+							release.await();
+
+						} catch (InterruptedException ex) {
+							Thread.currentThread().interrupt();
+						}
+						return Thread.currentThread().getName();
+					}));
+				}
+				for (int idx = 0; idx < 3; idx++) {
+					assertEquals(1, shards.getLoad(idx));
+				}
+				assertEquals(3, shards.shardOf(null)); // 探索開始位置を一周させる
+
+				// 探索開始位置が処理中のシャードでも、空いているシャード3が選ばれる
+				String idle = MyRegFreeCOMSrvShards.class.getSimpleName() + "-3";
+				for (int idx = 0; idx < 3; idx++) {
+					assertEquals(idle, shards.submit(null, srv -> Thread.currentThread().getName())
+							.get(10, TimeUnit.SECONDS));
+				}
+
+				release.countDown();
+				Set<String> used = new HashSet<>();
+				for (CompletableFuture<String> future : blocked) {
+					used.add(future.join());
+				}
+				assertEquals(3, used.size());
+				assertFalse(used.contains(idle));
+				for (int idx = 0; idx < 4; idx++) {
+					assertEquals(0, shards.getLoad(idx));
+				}
+
+			} finally {
+				// 失敗した場合もシャードを閉じられるように、処理中の要求を終わらせる
+				release.countDown();
+			}
+		}
+	}
+
+	@Test
+	public void testFailedConstruction() {
+		try {
+			new MyRegFreeCOMSrvShards(2, Routing.CONSISTENT_HASH, () -> {
+				throw new IllegalStateException("CoCreateInstance failed");
+			});
+			fail();
+
+		} catch (IllegalStateException ex) {
+			assertEquals("CoCreateInstance failed", ex.getMessage());
+		}
+	}
+
+	@Test
+	public void testConnectionSupervisorPolledOnApartment() throws InterruptedException {
+		List<String> probes = new CopyOnWriteArrayList<>();
+		CountDownLatch probed = new CountDownLatch(2);
+		MyRegFreeCOMSrvConnectionBackend backend = new MyRegFreeCOMSrvConnectionBackend() {
+
+			@Override
+			public void advise(IDispatchCallback sink) {
+				// 常に成功する
+			}
+
+			@Override
+			public void unadvise() {
+				// 常に成功する
+			}
+
+			@Override
+			public boolean probe() {
+				probes.add(Thread.currentThread().getName());
+				probed.countDown();
+				return true;
+			}
+		};
+		try (MyRegFreeCOMSrvShards shards = new MyRegFreeCOMSrvShards(1, Routing.CONSISTENT_HASH, () -> {
+			MyRegFreeCOMSrvConnectionSupervisor supervisor = new MyRegFreeCOMSrvConnectionSupervisor(
+					backend, new MyRegFreeCOMSrvEventsSink(), new MyRegFreeCOMSrvConnectionSupervisor.Policy()
+							.setProbeInterval(10, TimeUnit.MILLISECONDS)
+							.setInitialBackoff(5, TimeUnit.MILLISECONDS));
+			supervisor.connect();
+			return new InProcessMyRegFreeCOMSrv() {
+
+				@Override
+				public MyRegFreeCOMSrvConnectionSupervisor getConnectionSupervisor() {
+					return supervisor;
+				}
+			};
+		})) {
+			assertEquals(1, shards.getShardCount());
+
+			// 監視はシャードのアパートメントスレッド上で定期的に行われる
+			assertTrue(probed.await(10, TimeUnit.SECONDS));
+		}
+		assertEquals(MyRegFreeCOMSrvShards.class.getSimpleName() + "-0", probes.get(0));
+	}
+}
@@ -0,0 +1,218 @@
+package jp.seraphyware.example.jna;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.MyRegFreeCOMSrvEventsSink;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangedEvent;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangingEvent;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrvSubscription.Options;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrvSubscription.Policy;
+
+/**
+ * イベントシンクのDISPIDごとの配信方法のテスト.
+ * COMの代わりにイベントシンクから直接イベントを通知する。
+ */
+public class MyRegFreeCOMSrvSubscriptionTest {
+
+	private static final int CHANGING = MyRegFreeCOMSrvEventsSink.DISPID_NAME_PROPERTY_CHANGING;
+
+	private static final int CHANGED = MyRegFreeCOMSrvEventsSink.DISPID_NAME_PROPERTY_CHANGED;
+
+	private static void fireChanged(MyRegFreeCOMSrvEventsSink sink, String name) {
+		NamePropertyChangedEvent evt = new NamePropertyChangedEvent();
+		evt.setName(name);
+		sink.fireNamePropertyChanged(evt);
+	}
+
+	private static NamePropertyChangingEvent fireChanging(MyRegFreeCOMSrvEventsSink sink, String name) {
+		NamePropertyChangingEvent evt = new NamePropertyChangingEvent();
+		evt.setName(name);
+		sink.fireNamePropertyChanging(evt);
+		return evt;
+	}
+
+	@Test
+	public void testAllAndSample() {
+		MyRegFreeCOMSrvEventsSink sink = new MyRegFreeCOMSrvEventsSink();
+		RecordingListener all = new RecordingListener();
+		RecordingListener sampled = new RecordingListener(name -> true);
+		sink.addListener(all);
+		MyRegFreeCOMSrvSubscription sub = sink.addListener(sampled,
+				new Options().set(CHANGED, Policy.sample(3)));
+
+		for (int idx = 0; idx < 7; idx++) {
+			fireChanged(sink, "n" + idx);
+		}
+		assertEquals(7, all.events.size());
+		assertEquals("[changed:n0, changed:n3, changed:n6]", sampled.events.toString());
+		assertEquals(3, sub.getDelivered(CHANGED));
+		assertEquals(4, sub.getDropped(CHANGED));
+
+		// 他のDISPIDは既定ですべて配信される
+		assertTrue(fireChanging(sink, "x").isCancel());
+		assertEquals(1, sub.getDelivered(CHANGING));
+		assertEquals(0, sub.getDropped(CHANGING));
+	}
+
+	@Test
+	public void testRateLimit() {
+		AtomicLong clock = new AtomicLong(-5_000_000_000L); // nanoTimeは負の値もとりうる
+		MyRegFreeCOMSrvEventsSink sink = new MyRegFreeCOMSrvEventsSink();
+		RecordingListener listener = new RecordingListener();
+		MyRegFreeCOMSrvSubscription sub = sink.addListener(listener, new Options()
+				.set(CHANGED, Policy.rateLimit(10, 2)) // 100msごとに1件、最大2件
+				.setClock(clock::get));
+
+		// バケットの大きさまでは続けて配信される
+		for (int idx = 0; idx < 5; idx++) {
+			fireChanged(sink, "a" + idx);
+		}
+		assertEquals(2, sub.getDelivered(CHANGED));
+		assertEquals(3, sub.getDropped(CHANGED));
+
+		// 100ms経過で1件補充される
+		clock.addAndGet(99_000_000L);
+		fireChanged(sink, "b0");
+		clock.addAndGet(1_000_000L);
+		fireChanged(sink, "b1");
+		fireChanged(sink, "b2");
+		assertEquals(3, sub.getDelivered(CHANGED));
+
+		// 十分に時間が経過してもバケットの大きさを超えては貯まらない
+		clock.addAndGet(10_000_000_000L);
+		for (int idx = 0; idx < 5; idx++) {
+			fireChanged(sink, "c" + idx);
+		}
+		assertEquals("[changed:a0, changed:a1, changed:b1, changed:c0, changed:c1]",
+				listener.events.toString());
+		assertEquals(5, sub.getDelivered(CHANGED));
+		assertEquals(8, sub.getDropped(CHANGED));
+	}
+
+	@Test
+	public void testLatestOnly() {
+		Queue<Runnable> tasks = new ArrayDeque<>();
+		MyRegFreeCOMSrvEventsSink sink = new MyRegFreeCOMSrvEventsSink();
+		RecordingListener listener = new RecordingListener(name -> true);
+		MyRegFreeCOMSrvSubscription sub = sink.addListener(listener, new Options()
+				.set(CHANGING, Policy.latestOnly(tasks::add))
+				.set(CHANGED, Policy.latestOnly(tasks::add)));
+
+		for (int idx = 0; idx < 5; idx++) {
+			fireChanged(sink, "n" + idx);
+		}
+		// 非同期に配信されるのでキャンセルはCOMに返されない
+		assertFalse(fireChanging(sink, "x").isCancel());
+		assertTrue(listener.events.isEmpty());
+		assertEquals(2, tasks.size());
+
+		while (!tasks.isEmpty()) {
+			tasks.poll().run();
+		}
+		assertEquals("[changed:n4, changing:x]", listener.events.toString());
+		assertEquals(1, sub.getDelivered(CHANGED));
+		assertEquals(4, sub.getDropped(CHANGED));
+		assertEquals(1, sub.getDelivered(CHANGING));
+
+		// 配信後は次のイベントで再びスケジュールされる
+		fireChanged(sink, "n5");
+		tasks.poll().run();
+		assertEquals("changed:n5", listener.events.get(2));
+	}
+
+	@Test
+	public void testLatestOnlyRejected() {
+		Queue<Runnable> tasks = new ArrayDeque<>();
+		AtomicBoolean rejecting = new AtomicBoolean(true);
+		MyRegFreeCOMSrvEventsSink sink = new MyRegFreeCOMSrvEventsSink();
+		RecordingListener listener = new RecordingListener();
+		MyRegFreeCOMSrvSubscription sub = sink.addListener(listener, new Options()
+				.set(CHANGED, Policy.latestOnly(task -> {
+					if (rejecting.get()) {
+						throw new RejectedExecutionException("shutdown");
+					}
+					tasks.add(task);
+				})));
+
+		// 受け付けられなかったイベントは、例外を返さずに破棄される
+		for (int idx = 0; idx < 3; idx++) {
+			fireChanged(sink, "n" + idx);
+		}
+		assertEquals(3, sub.getDropped(CHANGED));
+		assertTrue(tasks.isEmpty());
+
+		// Executorが受け付けるようになれば、再び配信される
+		rejecting.set(false);
+		fireChanged(sink, "n3");
+		tasks.poll().run();
+		assertEquals("[changed:n3]", listener.events.toString());
+		assertEquals(1, sub.getDelivered(CHANGED));
+	}
+
+	@Test
+	public void testRemoveListener() {
+		MyRegFreeCOMSrvEventsSink sink = new MyRegFreeCOMSrvEventsSink();
+		RecordingListener listener = new RecordingListener();
+		sink.addListener(listener, new Options().set(CHANGED, Policy.sample(2)));
+		sink.removeListener(listener);
+		fireChanged(sink, "n0");
+		assertTrue(listener.events.isEmpty());
+	}
+
+	@Test
+	public void testRemoveListenerWithPendingLatestOnly() {
+		Queue<Runnable> tasks = new ArrayDeque<>();
+		MyRegFreeCOMSrvEventsSink sink = new MyRegFreeCOMSrvEventsSink();
+		RecordingListener listener = new RecordingListener();
+		MyRegFreeCOMSrvSubscription sub = sink.addListener(listener,
+				new Options().set(CHANGED, Policy.latestOnly(tasks::add)));
+		fireChanged(sink, "n0");
+		assertEquals(1, tasks.size());
+
+		// 削除後に実行された配信待ちのイベントは、リスナに届かず破棄される
+		sink.removeListener(listener);
+		assertTrue(sub.isCancelled());
+		tasks.poll().run();
+		assertTrue(listener.events.isEmpty());
+		assertEquals(0, sub.getDelivered(CHANGED));
+		assertEquals(1, sub.getDropped(CHANGED));
+	}
+
+	@Test
+	public void testRemoveListenerByEquals() {
+		MyRegFreeCOMSrvEventsSink sink = new MyRegFreeCOMSrvEventsSink();
+		List<String> events = new CopyOnWriteArrayList<>();
+		class EqualListener extends RecordingListener {
+
+			@Override
+			public void namePropertyChanged(NamePropertyChangedEvent evt) {
+				events.add(evt.getName());
+			}
+
+			@Override
+			public boolean equals(Object obj) {
+				return obj instanceof EqualListener;
+			}
+
+			@Override
+			public int hashCode() {
+				return 1;
+			}
+		}
+		// 等しいとされる別のインスタンスでも削除できる
+		sink.addListener(new EqualListener());
+		sink.removeListener(new EqualListener());
+		fireChanged(sink, "n0");
+		assertTrue(events.isEmpty());
+	}
+}
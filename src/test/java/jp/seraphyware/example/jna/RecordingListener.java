@@ -0,0 +1,62 @@
+package jp.seraphyware.example.jna;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.MyRegFreeCOMSrvEventListener;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangedEvent;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrv.NamePropertyChangingEvent;
+import jp.seraphyware.example.jna.MyRegFreeCOMSrvShards.ShardEventListener;
+
+/**
+ * 受け取ったイベントを "changing:名前", "changed:名前" の形式で記録するテスト用のリスナ.
+ * シャードIDつきのイベントは "シャードID:changing:名前" の形式で記録する。
+ */
+class RecordingListener implements MyRegFreeCOMSrvEventListener, ShardEventListener {
+
+	final List<String> events = new CopyOnWriteArrayList<>();
+
+	/**
+	 * 変更をキャンセルする名前
+	 */
+	private final Predicate<String> cancel;
+
+	/**
+	 * 変更をキャンセルしないリスナを構築する
+	 */
+	RecordingListener() {
+		this(name -> false);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param cancel 変更前のイベントで、変更をキャンセルする名前
+	 */
+	RecordingListener(Predicate<String> cancel) {
+		this.cancel = Objects.requireNonNull(cancel);
+	}
+
+	@Override
+	public void namePropertyChanging(NamePropertyChangingEvent evt) {
+		evt.setCancel(cancel.test(evt.getName()));
+		events.add("changing:" + evt.getName());
+	}
+
+	@Override
+	public void namePropertyChanged(NamePropertyChangedEvent evt) {
+		events.add("changed:" + evt.getName());
+	}
+
+	@Override
+	public void namePropertyChanging(int shardId, NamePropertyChangingEvent evt) {
+		evt.setCancel(cancel.test(evt.getName()));
+		events.add(shardId + ":changing:" + evt.getName());
+	}
+
+	@Override
+	public void namePropertyChanged(int shardId, NamePropertyChangedEvent evt) {
+		events.add(shardId + ":changed:" + evt.getName());
+	}
+}